@@ -75,12 +75,14 @@ import android.widget.TextView;
 import com.androidquery.auth.AccountHandle;
 import com.androidquery.callback.AbstractAjaxCallback;
 import com.androidquery.callback.AjaxCallback;
+import com.androidquery.callback.AjaxFuture;
 import com.androidquery.callback.BitmapAjaxCallback;
 import com.androidquery.callback.ImageOptions;
 import com.androidquery.callback.Transformer;
 import com.androidquery.util.AQUtility;
 import com.androidquery.util.Common;
 import com.androidquery.util.Constants;
+import com.androidquery.util.PackStore;
 import com.androidquery.util.WebImage;
 
 
@@ -2041,6 +2043,20 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	
 	
 	
+	/**
+	 * Ajax call that returns a future of the result. Use the future to wait with a timeout, cancel, or chain dependent calls.
+	 *
+	 * @param callback callback
+	 * @return the future
+	 * 
+	 */
+	
+	public <K> AjaxFuture<K> future(AjaxCallback<K> callback){
+		AjaxFuture<K> future = callback.getFuture();
+		ajax(callback);
+		return future;
+	}
+	
 	/**
 	 * Cache the url to file cache without any callback.
 	 *
@@ -2072,6 +2088,8 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	
 	/**
 	 * Return file cached by ajax or image requests. Returns null if url is not cached.
+	 * A response stored in the pack file (see AjaxCallback.setPackSize) is moved out in background when called on the UI thread,
+	 * and returned by a later call.
 	 *
 	 * @param url 
 	 * @return File
@@ -2079,8 +2097,9 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	public File getCachedFile(String url){
 	
 		//return AQUtility.getExistedCacheByUrl(AQUtility.getCacheDir(getContext()), url);
-		File result = AQUtility.getExistedCacheByUrl(AQUtility.getCacheDir(getContext(), AQuery.CACHE_PERSISTENT), url);
-		if(result == null) result = AQUtility.getExistedCacheByUrl(AQUtility.getCacheDir(getContext(), AQuery.CACHE_DEFAULT), url);
+		boolean pack = AjaxCallback.getPackSize() > 0;
+		File result = AQUtility.getExistedCacheFile(AQUtility.getCacheDir(getContext(), AQuery.CACHE_PERSISTENT), url, pack);
+		if(result == null) result = AQUtility.getExistedCacheFile(AQUtility.getCacheDir(getContext(), AQuery.CACHE_DEFAULT), url, pack);
 		return result;
 	}
 	
@@ -2092,10 +2111,20 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	 */
 	public T invalidate(String url){
 
-		File file = getCachedFile(url);
+		File pdir = AQUtility.getCacheDir(getContext(), AQuery.CACHE_PERSISTENT);
+		File dir = AQUtility.getCacheDir(getContext(), AQuery.CACHE_DEFAULT);
+		
+		File file = AQUtility.getExistedCacheByUrl(pdir, url);
+		if(file == null) file = AQUtility.getExistedCacheByUrl(dir, url);
 		if (file != null)
 			file.delete();
 		
+		//a packed entry is not moved out just to be deleted
+		if(AjaxCallback.getPackSize() > 0 && url != null && !url.startsWith(File.separator)){
+			PackStore.get(pdir).deleteAsync(AQUtility.getCacheFile(pdir, url).getName());
+			PackStore.get(dir).deleteAsync(AQUtility.getCacheFile(dir, url).getName());
+		}
+		
 		return self();
 	}
 	
@@ -2592,6 +2621,16 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 		return self();
 	}
 	
+	/**
+	 * Download a file. 
+	 * 
+	 * To resume an interrupted download from where it stopped, set cb.resume(true). See AjaxCallback.resume(boolean).
+	 *
+	 * @param url url
+	 * @param target the target file
+	 * @param cb callback
+	 * @return self
+	 */
 	public T download(String url, File target, AjaxCallback<File> cb){
 		
 		cb.url(url).type(File.class).targetFile(target);		
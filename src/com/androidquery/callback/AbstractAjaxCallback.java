@@ -29,14 +29,19 @@ import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -68,6 +73,8 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
@@ -95,6 +102,10 @@ import com.androidquery.AQuery;
 import com.androidquery.auth.AccountHandle;
 import com.androidquery.auth.GoogleHandle;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.ObjectCache;
+import com.androidquery.util.JSONSnapshot;
+import com.androidquery.util.NegativeCache;
+import com.androidquery.util.PackStore;
 import com.androidquery.util.Common;
 import com.androidquery.util.Constants;
 import com.androidquery.util.PredefinedBAOS;
@@ -132,6 +143,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	private int policy = Constants.CACHE_DEFAULT;
 	private File cacheDir;
 	private File targetFile;
+	private boolean resume;
 	private AccountHandle ah;
 	
 	protected AjaxStatus status;
@@ -150,6 +162,22 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	private boolean uiCallback = true;
 	
+	private int retries;
+	private int attempts;
+	private long retryDelay;
+	private int retryOn;
+	
+	private int pageSize;
+	private JSONArrayStream streamer;
+	
+	private String xmlSelector;
+	private Object xmlHandler;
+	private String xmlCallback;
+	private boolean xmlStreamed;
+	
+	private File cacheTemp;
+	private byte[] cacheTeed;
+	
 	@SuppressWarnings("unchecked")
 	private K self(){
 		return (K) this;
@@ -192,6 +220,99 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		GZIP = gzip;
 	}
 	
+	private static final ObjectCache results = new ObjectCache();
+	
+	/**
+	 * Sets the memcache budget of a result type, such as JSONObject.class. See memCache(boolean).
+	 * 
+	 * Default is 1MB per type.
+	 *
+	 * @param type the result type, or null for the default budget of all types
+	 * @param bytes the budget in estimated bytes
+	 */
+	public static void setMemCacheBudget(Class<?> type, long bytes){
+		results.setBudget(type, bytes);
+	}
+	
+	/**
+	 * Sets the size estimator of memcached results. The default estimator handles String, byte[], JSONObject, JSONArray and Bitmap,
+	 * and counts other types as 1KB.
+	 *
+	 * @param estimator the estimator, null for the default
+	 */
+	public static void setMemCacheEstimator(ObjectCache.Estimator estimator){
+		results.setEstimator(estimator);
+	}
+	
+	/**
+	 * Clear the ajax result memcache. 
+	 */
+	public static void clearMemCache(){
+		results.clear();
+	}
+	
+	private static int PACK_SIZE = 0;
+	
+	/**
+	 * Responses up to this size are file cached in one shared pack file per cache directory, instead of a file per url.
+	 * Saves a file system block and an inode per entry for caches with many tiny entries. Streamed types such as File are never packed.
+	 * 
+	 * Default is 0 (disabled).
+	 *
+	 * @param bytes max size of a packed response
+	 */
+	public static void setPackSize(int bytes){
+		PACK_SIZE = bytes;
+	}
+	
+	/**
+	 * Gets the max size of a packed response. See setPackSize(int).
+	 * 
+	 * @return max size, 0 if disabled
+	 */
+	public static int getPackSize(){
+		return PACK_SIZE;
+	}
+	
+	private static boolean NEGATIVE_CACHE = false;
+	private static final NegativeCache negatives = new NegativeCache();
+	
+	/**
+	 * Remember failed GET requests per url, so a broken url fails right away instead of being requested again.
+	 * The status of a remembered failure has getNegative() set. Images are always remembered, with the fallback image shown.
+	 * 
+	 * Default is false.
+	 *
+	 * @param cache enable the negative cache
+	 */
+	public static void setNegativeCache(boolean cache){
+		NEGATIVE_CACHE = cache;
+	}
+	
+	/**
+	 * Gets the negative cache to configure how long failures are remembered per status code, or to clear it.
+	 *
+	 * @return the negative cache
+	 */
+	public static NegativeCache getNegativeCache(){
+		return negatives;
+	}
+	
+	private static boolean SNAPSHOT = false;
+	
+	/**
+	 * Keep a binary snapshot of file cached JSONObject and JSONArray responses after they are parsed,
+	 * so later file cache hits rebuild the result without parsing the text again.
+	 * The snapshot is stored next to the cache file and ignored once the cache file is replaced.
+	 * 
+	 * Default is false.
+	 *
+	 * @param snapshot enable snapshots
+	 */
+	public static void setJSONSnapshot(boolean snapshot){
+		SNAPSHOT = snapshot;
+	}
+	
 	/**
 	 * Sets the default static transformer. This transformer should be stateless.
 	 * If state is required, use the AjaxCallback.transformer() or AQuery.transformer().
@@ -316,7 +437,10 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	/**
-	 * Indicate ajax request to be memcached. Note: The default ajax handler does not supply a memcache.
+	 * Indicate ajax request to be memcached. The default handler keeps GET results in a shared LRU memcache,
+	 * bounded per result type (see setMemCacheBudget) and expired with expire(long). Streamed types such as File are not memcached.
+	 * 
+	 * Cached objects are shared by requests of the same url, and should not be modified.
 	 * Subclasses such as BitmapAjaxCallback can provide their own memcache. 
 	 *
 	 * @param cache the cache
@@ -354,6 +478,83 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return self();
 	}
 	
+	/**
+	 * Retry failed requests with exponential backoff and jitter. 
+	 * 
+	 * Retries are scheduled on a timer and do not hold a network thread while waiting.
+	 * Only idempotent requests (GET, PUT, DELETE) are retried. 
+	 * 
+	 * Retry on network errors and 5xx responses, and on 429 responses honoring the Retry-After header,
+	 * in seconds or as an http date. A 503 response honors the header as well.
+	 *
+	 * @param max the max number of retries
+	 * @param delay the base delay in milliseconds, doubled for every retry
+	 * @return self
+	 */
+	public K retry(int max, long delay){
+		return retry(max, delay, Constants.RETRY_ALL);
+	}
+	
+	/**
+	 * Retry failed requests with exponential backoff and jitter.
+	 * 
+	 * See retry(int max, long delay).
+	 *
+	 * @param max the max number of retries
+	 * @param delay the base delay in milliseconds, doubled for every retry
+	 * @param retryOn bit mask of AQuery.RETRY_NETWORK, AQuery.RETRY_SERVER and AQuery.RETRY_THROTTLED
+	 * @return self
+	 */
+	public K retry(int max, long delay, int retryOn){
+		this.retries = max;
+		this.retryDelay = delay;
+		this.retryOn = retryOn;
+		return self();
+	}
+	
+	/**
+	 * Deliver the elements of a JSONArray response in pages while the response is being downloaded.
+	 * 
+	 * The page(url, items, status) method is invoked for every pageSize elements parsed, before the final callback with the complete array.
+	 * The download waits if the pages are not consumed fast enough. Call abort() to stop the download.
+	 *
+	 * @param pageSize number of elements per page
+	 * @return self
+	 */
+	public K stream(int pageSize){
+		this.pageSize = pageSize;
+		return self();
+	}
+	
+	/**
+	 * Parse the XML response while it is being downloaded, and deliver each element that matches the selector as a small XmlDom fragment.
+	 * 
+	 * The element(url, element, status) method is invoked for every matched element, before the final callback.
+	 * Works with any response type, XmlPullParser.class or File.class avoids parsing the document again for the final callback.
+	 * 
+	 * @param selector the element selector, such as "entry" or "feed > entry[type=x]", see XmlDom.select(String)
+	 * @return self
+	 */
+	public K xmlElement(String selector){
+		return xmlElement(selector, null, null);
+	}
+	
+	/**
+	 * Parse the XML response while it is being downloaded, and invoke handler.callback(String url, XmlDom element, AjaxStatus status)
+	 * for each element that matches the selector, before the final callback.
+	 * 
+	 * @param selector the element selector, such as "entry" or "feed > entry[type=x]", see XmlDom.select(String)
+	 * @param handler the handler object with the callback method
+	 * @param callback the callback method name
+	 * @return self
+	 */
+	public K xmlElement(String selector, Object handler, String callback){
+		this.xmlSelector = selector;
+		this.xmlHandler = handler;
+		this.xmlCallback = callback;
+		return self();
+	}
+	
 	/**
 	 * The expire duation for filecache. If a cached copy will be served if a cached file exists within current time minus expire duration.
 	 *
@@ -420,6 +621,23 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return self();
 	}
 	
+	/**
+	 * Resume an interrupted download to the target file instead of starting from zero.
+	 * 
+	 * Bytes are written to a partial file next to the target, together with the server validator (ETag or Last-Modified).
+	 * A retry sends Range and If-Range headers and appends to the partial file. If the server responds with the full 
+	 * content (200), the partial file is overwritten. The partial file is renamed to the target file once complete.
+	 * 
+	 * Only applies to GET requests with a targetFile.
+	 *
+	 * @param resume resume partial downloads
+	 * @return self
+	 */
+	public K resume(boolean resume){
+		this.resume = resume;
+		return self();
+	}
+	
 	
 	/**
 	 * Set http POST params. If params are set, http POST method will be used. 
@@ -481,7 +699,9 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	private static final Class<?>[] DEFAULT_SIG = {String.class, Object.class, AjaxStatus.class};	
 	
-	private boolean completed;
+	private volatile boolean completed;
+	private AjaxFuture<T> future;
+	
 	void callback(){
 		
 		showProgress(false);
@@ -506,9 +726,23 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			skip(url, result, status);
 		}
 		
+		//invalidated in the callback
+		if(memCache && status.getInvalid()){
+			results.remove(getCacheUrl());
+		}
+		
 		filePut();
 		
-		if(!blocked){
+		if(future != null){
+			
+			future.complete(result, status);
+			
+			//a stream result is closed by the owner of the future, see getFuture()
+			if(future.isCancelled() || !isStreamResult()){
+				status.close();
+			}
+			
+		}else if(!blocked){
 			status.close();
 		}
 		
@@ -516,6 +750,10 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		AQUtility.debugNotify();
 	}
 	
+	private boolean isStreamResult(){
+		return InputStream.class.equals(type) || XmlPullParser.class.equals(type);
+	}
+	
 	private void wake(){
 		
 		if(!blocked) return;
@@ -530,7 +768,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	
-	private boolean blocked;
+	private volatile boolean blocked;
 	
 	/**
 	 * Block the current thread until the ajax call is completed. Returns immediately if ajax is already completed.
@@ -539,22 +777,75 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	 */
 	
 	public void block(){
+		//wait at most the network timeout plus 5 seconds, and the same again plus the delay for every retry, this guarantee thread will never be blocked forever
+		block(NET_TIMEOUT + 5000, true);
+	}
+	
+	/**
+	 * Block the current thread until the ajax call is completed or the timeout is reached. Returns immediately if ajax is already completed.
+	 * Exception will be thrown if this method is called in main thread.
+	 *
+	 * @param timeout max wait time in milliseconds
+	 * @return if the ajax call is completed
+	 */
+	
+	public boolean block(long timeout){
+		return block(timeout, false);
+	}
+	
+	private boolean block(long timeout, boolean retries){
 		
 		if(AQUtility.isUIThread()){
 			throw new IllegalStateException("Cannot block UI thread.");
 		}
 		
-		if(completed) return;
+		if(completed) return true;
+		
+		long deadline = System.currentTimeMillis() + timeout;
 		
 		try{
 			synchronized(this){
 				blocked = true;
-				//wait at most the network timeout plus 5 seconds, this guarantee thread will never be blocked forever
-				this.wait(NET_TIMEOUT + 5000);
+				
+				long extended = retryWait;
+				
+				while(!completed){
+					
+					if(retries){
+						deadline += retryWait - extended;
+						extended = retryWait;
+					}
+					
+					long remain = deadline - System.currentTimeMillis();
+					if(remain <= 0) break;
+					
+					this.wait(remain);
+				}
 			}
 		}catch(Exception e){			
 		}
 		
+		return completed;
+		
+	}
+	
+	/**
+	 * Gets the future of this ajax call. The future must be obtained before the call is started.
+	 * 
+	 * The future can be used to wait for the result with a timeout, cancel the request, or chain dependent work.
+	 * 
+	 * For InputStream and XmlPullParser results, call getStatus().close() on the future when done with the result.
+	 * Other results are closed once the future is completed.
+	 *
+	 * @return the future
+	 */
+	public synchronized AjaxFuture<T> getFuture(){
+		
+		if(future == null){
+			future = new AjaxFuture<T>(this);
+		}
+		
+		return future;
 	}
 	
 	
@@ -573,24 +864,209 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 	}
 	
+	/**
+	 * The page callback method to be overwritten for streamed JSONArray responses. See stream(int pageSize).
+	 *
+	 * @param url the url
+	 * @param items the elements in this page
+	 * @param status the status
+	 */
+	public void page(String url, JSONArray items, AjaxStatus status){
+		
+	}
+	
+	private static final Class<?>[] ELEMENT_SIG = {String.class, XmlDom.class, AjaxStatus.class};
+	
+	/**
+	 * The element callback method to be overwritten for streamed XML responses. See xmlElement(String selector).
+	 *
+	 * @param url the url
+	 * @param element the matched element
+	 * @param status the status
+	 */
+	public void element(String url, XmlDom element, AjaxStatus status){
+		
+		if(xmlHandler != null){
+			AQUtility.invokeHandler(xmlHandler, xmlCallback, false, true, ELEMENT_SIG, url, element, status);
+		}
+		
+	}
+	
+	private static final int MAX_PAGES = 2;
+	private int pendingPages;
+	
+	void deliverPage(final JSONArray items){
+		
+		deliverStreamed(new Runnable(){
+			
+			@Override
+			public void run(){
+				page(url, items, status);
+			}
+		});
+		
+	}
+	
+	private void deliverElement(final XmlDom element){
+		
+		deliverStreamed(new Runnable(){
+			
+			@Override
+			public void run(){
+				element(url, element, status);
+			}
+		});
+		
+	}
+	
+	private void deliverStreamed(final Runnable delivery){
+		
+		if(!isActive()) return;
+		
+		if(!uiCallback || AQUtility.isUIThread()){
+			delivery.run();
+			return;
+		}
+		
+		//backpressure, the parser waits if the ui thread is behind
+		synchronized(this){
+			
+			try{
+				while(pendingPages >= MAX_PAGES && !abort){
+					wait(100);
+				}
+			}catch(InterruptedException e){
+			}
+			
+			pendingPages++;
+		}
+		
+		AQUtility.post(new Runnable(){
+			
+			@Override
+			public void run(){
+				
+				try{
+					if(!abort) delivery.run();
+				}catch(Exception e){
+					AQUtility.report(e);
+				}
+				
+				synchronized(AbstractAjaxCallback.this){
+					pendingPages--;
+					AbstractAjaxCallback.this.notifyAll();
+				}
+			}
+		});
+		
+	}
+	
+	//invoked by XmlDom.stream with each matched element, stops parsing once aborted
+	private class ElementHandler implements XmlDom.Listener{
+		
+		@Override
+		public boolean element(XmlDom element){
+			
+			if(abort) return false;
+			
+			deliverElement(element);
+			return true;
+		}
+	}
+	
+	private void streamXml(InputStream is){
+		
+		xmlStreamed = true;
+		
+		try{
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(is, encoding);
+			XmlDom.stream(parser, xmlSelector, new ElementHandler());
+		}catch(Exception e){
+			//a broken document should not fail the download, the final transform reports the error
+			AQUtility.debug(e);
+		}
+		
+	}
+	
+	boolean isAborted(){
+		return abort;
+	}
+	
+	//a result made from other memcached results, called in background before the file cache
+	protected T scaledGet(String url){
+		return null;
+	}
+	
 	protected T fileGet(String url, File file, AjaxStatus status){
 		
 		try {			
 			byte[] data = null;
 		
+			boolean snapshot = isSnapshot();
+			
+			if(snapshot){
+				T result = snapshotGet(file);
+				if(result != null) return result;
+			}
+			
 			if(isStreamingContent()){
 				status.file(file);
 			}else{
-				data = AQUtility.toBytes(new FileInputStream(file));
+				data = AQUtility.toBytes(new FileInputStream(file), (int) file.length());
 			}
 						
-			return transform(url, data, status);
+			T result = transform(url, data, status);
+			
+			if(snapshot && result != null){
+				snapshotPut(file, result);
+			}
+			
+			return result;
 		} catch(Exception e) {
 			AQUtility.debug(e);
 			return null;
 		}
 	}
 	
+	private boolean isSnapshot(){
+		return SNAPSHOT && (JSONObject.class.equals(type) || JSONArray.class.equals(type));
+	}
+	
+	private static File getSnapshotFile(File file){
+		return new File(file.getParentFile(), file.getName() + ".snap");
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T snapshotGet(File file){
+		
+		File snap = getSnapshotFile(file);
+		if(!snap.exists()) return null;
+		
+		try{
+			byte[] data = AQUtility.toBytes(new FileInputStream(snap), (int) snap.length());
+			Object result = JSONSnapshot.decode(data, file.length(), file.lastModified());
+			
+			if(type.isInstance(result)){
+				return (T) result;
+			}
+		}catch(Exception e){
+			AQUtility.debug(e);
+		}
+		
+		//stale or corrupted, replaced after the text is parsed
+		return null;
+	}
+	
+	private void snapshotPut(File file, Object result){
+		
+		byte[] data = JSONSnapshot.encode(result, file.length(), file.lastModified());
+		
+		if(data != null){
+			AQUtility.storeAsync(getSnapshotFile(file), data, 0);
+		}
+	}
+	
 	protected T datastoreGet(String url){
 		
 		return null;
@@ -627,6 +1103,18 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 		File file = status.getFile();
 		
+		//not parsed while downloading, such as a file cache hit
+		if(xmlSelector != null && !xmlStreamed && (data != null || file != null)){
+			
+			try{
+				InputStream is = data != null ? new ByteArrayInputStream(data) : new FileInputStream(file);
+				streamXml(is);
+				AQUtility.close(is);
+			}catch(Exception e){
+				AQUtility.debug(e);
+			}
+		}
+		
 		if(data != null){
 			
 			if(type.equals(Bitmap.class)){			
@@ -650,6 +1138,26 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			if(type.equals(JSONArray.class)){
 				
 				JSONArray result = null;
+				
+				if(pageSize > 0){
+					
+					//already parsed while downloading, or parse and deliver pages from cached bytes 
+					if(streamer == null){
+						streamer = new JSONArrayStream(this, null, encoding, pageSize);
+						try{
+							streamer.write(data);
+						}catch(IOException e){
+							AQUtility.debug(e);
+						}
+					}
+					
+					result = streamer.getResult();
+					streamer = null;
+					
+					if(result != null){
+						return (T) result;
+					}
+				}
 		    	
 		    	try {    		
 		    		String str = new String(data, encoding);
@@ -662,19 +1170,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			
 			if(type.equals(String.class)){
 				
-				String result = null;
-				
-				if(status.getSource() == AjaxStatus.NETWORK){
-					AQUtility.debug("network");
-					result = correctEncoding(data, encoding, status);
-				}else{
-					AQUtility.debug("file");
-					try {    		
-			    		result = new String(data, encoding);
-					} catch (Exception e) {	  		
-						AQUtility.debug(e);
-					}
-				}
+				String result = correctEncoding(data, encoding, status);
 				
 				return (T) result;
 			}
@@ -763,18 +1259,38 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	//This is an adhoc way to get charset without html parsing library, might not cover all cases.
-	private String getCharset(String html){
+	private static final Pattern META_CHARSET = Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?([\\w-]+)", Pattern.CASE_INSENSITIVE);
+	private static final int SNIFF_LENGTH = 1024 * 4;
+	
+	//check the byte order mark and the meta tags within the first few KB, without decoding the whole document
+	private static String sniffCharset(byte[] data){
+		
+		int len = data.length;
 		
-		String pattern = "<meta [^>]*http-equiv[^>]*\"Content-Type\"[^>]*>";
+		if(len >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF){
+			return "UTF-8";
+		}
 		
-		Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);		
-		Matcher m = p.matcher(html);
+		if(len >= 2 && (data[0] & 0xFF) == 0xFE && (data[1] & 0xFF) == 0xFF){
+			return "UTF-16BE";
+		}
 		
-		if(!m.find()) return null;
+		if(len >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xFE){
+			return "UTF-16LE";
+		}
 		
-		String tag = m.group();
+		try{
+			//latin-1 maps bytes 1:1, enough to find the ascii meta tag
+			String head = new String(data, 0, Math.min(len, SNIFF_LENGTH), "ISO-8859-1");
+			Matcher m = META_CHARSET.matcher(head);
+			if(m.find()){
+				return m.group(1);
+			}
+		}catch(Exception e){
+			AQUtility.debug(e);
+		}
 		
-		return parseCharset(tag);
+		return null;
 	}
 	
 	private String parseCharset(String tag){
@@ -786,6 +1302,14 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return charset;
 	}
 	
+	private static boolean isSupported(String charset){
+		try{
+			return Charset.isSupported(charset);
+		}catch(Exception e){
+			return false;
+		}
+	}
+	
 	private String correctEncoding(byte[] data, String target, AjaxStatus status){
 		
 		String result = null;
@@ -795,21 +1319,27 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 				return new String(data, target);
 			}
 			
-			String header = parseCharset(status.getHeader("Content-Type"));
-			AQUtility.debug("parsing header", header);
-			if(header != null){
-				return new String(data, header);
+			//cached text is always utf-8, including files cached by older versions, whose meta tags still name the original charset
+			if(status.getSource() != AjaxStatus.NETWORK){
+				return new String(data, "utf-8");
 			}
 			
-			result = new String(data, "utf-8");
+			String charset = parseCharset(status.getHeader("Content-Type"));
+			AQUtility.debug("parsing header", charset);
+			
+			if(charset == null){
+				charset = sniffCharset(data);
+				AQUtility.debug("sniffed", charset);
+			}
 			
-			String charset = getCharset(result);
+			if(charset == null || !isSupported(charset)){
+				charset = "utf-8";
+			}
 			
-			AQUtility.debug("parsing needed", charset);
+			result = new String(data, charset);
 			
-			if(charset != null && !"utf-8".equalsIgnoreCase(charset)){	
+			if(!"utf-8".equalsIgnoreCase(charset)){
 				AQUtility.debug("correction needed", charset);
-				result = new String(data, charset);
 				status.data(result.getBytes("utf-8"));
 			}
 			
@@ -822,18 +1352,51 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	
+	@SuppressWarnings("unchecked")
 	protected T memGet(String url){
-		return null;
+		
+		if(!isMemCacheable()) return null;
+		
+		return (T) results.get(type, url, expire);
 	}
 	
 	
 	protected void memPut(String url, T object){
+		
+		if(!isMemCacheable()) return;
+		
+		results.put(type, url, object);
+	}
+	
+	private boolean isMemCacheable(){
+		
+		if(!memCache || refresh || expire < 0 || type == null || isStreamingContent()) return false;
+		
+		//results are keyed by the cache url, a handle that does not scope it to the account would share them across accounts
+		if(ah != null && url.equals(getCacheUrl())) return false;
+		
+		return method == Constants.METHOD_GET || (method == Constants.METHOD_DETECT && params == null);
 	}
 	
 	protected void filePut(String url, T object, File file, byte[] data){
 		
 		if(file == null || data == null) return;
 		
+		File temp = cacheTemp;
+		byte[] teed = cacheTeed;
+		cacheTemp = null;
+		cacheTeed = null;
+		
+		//the response is already on disk, renamed on the store executor, unless the transform replaced the data
+		if(temp != null && data == teed){
+			AQUtility.commitAsync(temp, file, data);
+			return;
+		}
+		
+		if(temp != null){
+			AQUtility.deleteAsync(temp);
+		}
+		
 		AQUtility.storeAsync(file, data, 0);
 		
 	}
@@ -895,6 +1458,15 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			result = null;
 		}
 		
+		//a callback started again gets all of its retries, retry() goes to execute() directly
+		attempts = 0;
+		synchronized(this){
+			retryWait = 0;
+		}
+		
+		streamer = null;
+		xmlStreamed = false;
+		
 		showProgress(true);
 		
 		if(ah != null){
@@ -938,7 +1510,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	private void work(Context context){
 		
-		T object = memGet(url);
+		T object = memGet(getCacheUrl());
 			
 		if(object != null){		
 			result = object;
@@ -975,6 +1547,11 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			}
 			
 			if(!status.getReauth()){
+				
+				if(retry()){
+					return;
+				}
+				
 				//if doesn't need to reauth
 				if(uiCallback){
 					AQUtility.post(this);
@@ -995,7 +1572,9 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 		if(!refresh){
 		
-			if(fileCache){	
+			memoryWork();
+			
+			if(result == null && fileCache){	
 				fileWork();			
 			}
 		}
@@ -1004,7 +1583,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			datastoreWork();			
 		}
 		
-		if(result == null){
+		if(result == null && !negativeWork()){
 			networkWork();
 		}
 		
@@ -1048,6 +1627,41 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			if(result != null){
 				status.time(new Date(file.lastModified())).done();
 			}
+		}else if(isPackable()){
+			packWork();
+		}
+	}
+	
+	private boolean isPackable(){
+		return PACK_SIZE > 0 && cacheDir != null && !isStreamingContent();
+	}
+	
+	private void packWork(){
+		
+		if(expire < 0) return;
+		
+		PackStore pack = PackStore.get(cacheDir);
+		String key = getCacheFile().getName();
+		
+		byte[] data = pack.get(key, expire);
+		
+		if(data != null){
+			
+			status.source(AjaxStatus.FILE);
+			result = transform(url, data, status);
+			
+			if(result != null){
+				status.time(new Date(pack.getTime(key))).done();
+			}
+		}
+	}
+	
+	private void memoryWork(){
+		
+		result = scaledGet(url);
+		
+		if(result != null){
+			status.source(AjaxStatus.MEMORY).done();
 		}
 	}
 	
@@ -1060,6 +1674,44 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		}
 	}
 	
+	protected boolean isNegativeCacheable(){
+		return NEGATIVE_CACHE && isIdempotent();
+	}
+	
+	private boolean negativeWork(){
+		
+		//a retry is not blocked by its own failure
+		if(refresh || attempts > 0 || !isNegativeCacheable()) return false;
+		
+		int code = negatives.get(url);
+		if(code == 0) return false;
+		
+		status.code(code).message("negative cached").negative(true);
+		
+		try{
+			result = transform(url, null, status);
+		}catch(Exception e){
+			AQUtility.debug(e);
+		}
+		
+		status.done();
+		
+		return true;
+	}
+	
+	private void negativePut(){
+		
+		if(abort || !isNegativeCacheable()) return;
+		
+		int code = status.getCode();
+		
+		if(code >= 200 && code < 400){
+			negatives.remove(url);
+		}else if(code >= 400 || code == AjaxStatus.NETWORK_ERROR || code == AjaxStatus.TRANSFORM_ERROR){
+			negatives.put(url, code);
+		}
+	}
+	
 	private boolean reauth;
 	private void networkWork(){
 		
@@ -1075,6 +1727,11 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			
 			network();
 			
+			if(status.getCode() == 416 && deletePartial()){
+				AQUtility.debug("range not satisfiable, fetching full content");
+				network();
+			}
+			
 			if(ah != null && ah.expired(this, status) && !reauth){
 				AQUtility.debug("reauth needed", status.getMessage());	
 				reauth = true;
@@ -1105,6 +1762,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		}
 		
 		lastStatus = status.getCode();
+		negativePut();
 		status.done();
 	}
 	
@@ -1112,11 +1770,37 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return AQUtility.getCacheFile(cacheDir, getCacheUrl());
 	}
 	
+	protected File getCacheDir(){
+		return cacheDir;
+	}
+	
 	
 	protected boolean isStreamingContent(){
 		return File.class.equals(type) || XmlPullParser.class.equals(type) || InputStream.class.equals(type) || XmlDom.class.equals(type);
 	}
 	
+	/**
+	 * Return true if a response kept in memory should also be written to a temp cache file while downloading.
+	 * The temp file replaces the cache file after the callback, instead of writing the bytes with filePut(url, object, file, data).
+	 * 
+	 * Subclasses that store something other than the response bytes, or delay the write on purpose, should return false.
+	 */
+	protected boolean isStreamingCache(){
+		return fileCache;
+	}
+	
+	private File getCacheTemp(){
+		
+		if(!isStreamingCache() || cacheDir == null) return null;
+		
+		try{
+			return AQUtility.createTempFile(getCacheFile());
+		}catch(Exception e){
+			AQUtility.debug(e);
+			return null;
+		}
+	}
+	
 	private File getPreFile(){
 		
 		boolean pre = isStreamingContent();
@@ -1140,7 +1824,8 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			try{
 				
 				result.getParentFile().mkdirs();
-				result.createNewFile();
+				
+				//downloads write to a temp or partial file and only create the target when complete
 			}catch(Exception e){
 				AQUtility.report(e);
 				return null;
@@ -1152,7 +1837,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	
 	private void filePut(){
-			
+		
 		if(result != null && fileCache){
 			
 			byte[] data = status.getData();
@@ -1161,13 +1846,28 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 				if(data != null && status.getSource() == AjaxStatus.NETWORK){
 				
 					File file = getCacheFile();
+					boolean pack = isPackable();
+					
 					if(!status.getInvalid()){	
 						//AQUtility.debug("write", url);
-						filePut(url, result, file, data);
+						if(pack && data.length <= PACK_SIZE){
+							PackStore.get(cacheDir).putAsync(file.getName(), data);
+							file.delete();
+						}else{
+							
+							if(pack){
+								PackStore.get(cacheDir).deleteAsync(file.getName());
+							}
+							
+							filePut(url, result, file, data);
+						}
 					}else{
 						if(file.exists()){
 							file.delete();
 						}
+						if(pack){
+							PackStore.get(cacheDir).deleteAsync(file.getName());
+						}
 					}
 					
 				}
@@ -1177,6 +1877,15 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			
 			status.data(null);
 		}
+		
+		//not used by filePut
+		File temp = cacheTemp;
+		cacheTemp = null;
+		cacheTeed = null;
+		
+		if(temp != null){
+			AQUtility.deleteAsync(temp);
+		}
 	}
 	
 	private static String extractUrl(Uri uri){	
@@ -1255,7 +1964,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	private void afterWork(){
 		
 		if(url != null && memCache){
-			memPut(url, result);
+			memPut(getCacheUrl(), result);
 		}
 		
 		callback();
@@ -1263,6 +1972,123 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	
+	private static final int MAX_RETRY_DELAY = 5 * 60 * 1000;
+	private static Random random = new Random();
+	private static ScheduledExecutorService retryExe;
+	private long retryWait;
+	
+	private static synchronized ScheduledExecutorService getRetryExecutor(){
+		
+		if(retryExe == null){
+			
+			retryExe = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				
+				@Override
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "aq-retry");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return retryExe;
+	}
+	
+	//schedule the request again if the failure is retryable, the network thread is released while waiting
+	private boolean retry(){
+		
+		//a remembered failure is not requested again until it expires
+		if(attempts >= retries || abort || status.getNegative() || !isIdempotent()) return false;
+		
+		int code = status.getCode();
+		long delay = -1;
+		
+		if(code == AjaxStatus.NETWORK_ERROR){
+			if((retryOn & Constants.RETRY_NETWORK) != 0) delay = backoff();
+		}else if(code == 429){
+			if((retryOn & Constants.RETRY_THROTTLED) != 0) delay = retryAfter();
+		}else if(code >= 500 && code < 600){
+			if((retryOn & Constants.RETRY_SERVER) != 0) delay = code == 503 ? retryAfter() : backoff();
+		}
+		
+		if(delay < 0) return false;
+		
+		attempts++;
+		
+		AQUtility.debug("retry " + attempts + " in", delay);
+		
+		status.reset();
+		result = null;
+		
+		//block() waits for the retry as well
+		synchronized(this){
+			retryWait += delay + NET_TIMEOUT + 5000;
+		}
+		
+		getRetryExecutor().schedule(new Runnable(){
+			
+			@Override
+			public void run(){
+				execute(AbstractAjaxCallback.this);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		
+		return true;
+	}
+	
+	private boolean isIdempotent(){
+		
+		if(url == null) return false;
+		
+		if(Constants.METHOD_POST == method) return false;
+		if(Constants.METHOD_DETECT == method && params != null) return false;
+		
+		return true;
+	}
+	
+	//full jitter between half and the whole of base * 2^attempts
+	private long backoff(){
+		
+		long delay = retryDelay << Math.min(attempts, 16);
+		delay = Math.min(delay, MAX_RETRY_DELAY);
+		
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+	
+	private long retryAfter(){
+		
+		String header = status.getHeader("Retry-After");
+		
+		if(header != null){
+			
+			header = header.trim();
+			
+			try{
+				long seconds = Long.parseLong(header);
+				return Math.max(0, Math.min(seconds * 1000, MAX_RETRY_DELAY));
+			}catch(NumberFormatException e){
+			}
+			
+			try{
+				Date date = DateUtils.parseDate(header);
+				
+				//relative to the clock of the server if it sent one
+				long now = System.currentTimeMillis();
+				String server = status.getHeader("Date");
+				if(server != null){
+					now = DateUtils.parseDate(server.trim()).getTime();
+				}
+				
+				return Math.max(0, Math.min(date.getTime() - now, MAX_RETRY_DELAY));
+			}catch(DateParseException e){
+				AQUtility.debug("bad retry-after", header);
+			}
+		}
+		
+		return backoff();
+	}
+	
 	private static ExecutorService fetchExe;
 	public static void execute(Runnable job){
 		
@@ -1459,7 +2285,24 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
                
 		}
 		
-		if(GZIP && (headers == null || !headers.containsKey("Accept-Encoding"))){
+		File partial = null;
+		long offset = 0;
+		
+		if(resume && targetFile != null && hr instanceof HttpGet){
+			
+			partial = getPartialFile(targetFile);
+			String validator = readValidator(partial);
+			
+			if(validator != null && partial.length() > 0){
+				offset = partial.length();
+				AQUtility.debug("resuming", offset);
+				hr.addHeader("Range", "bytes=" + offset + "-");
+				hr.addHeader("If-Range", validator);
+			}
+		}
+		
+		//byte ranges of a gzip encoded response do not map to the decoded file, so resumable downloads ask for identity
+		if(GZIP && partial == null && (headers == null || !headers.containsKey("Accept-Encoding"))){
 			hr.addHeader("Accept-Encoding", "gzip");
 		}
 			
@@ -1551,24 +2394,70 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			HttpUriRequest currentReq = (HttpUriRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
 	        redirect = currentHost.toURI() + currentReq.getURI();
 			
-	        int size = Math.max(32, Math.min(1024 * 64, (int) entity.getContentLength()));
+	        //presize up to 64KB when the length is known, PredefinedBAOS grows in segments beyond that
+	        long length = entity.getContentLength();
+	        int size = length < 0 ? -1 : (int) Math.min(length, MAX_PRESIZE);
 	        
 	        OutputStream os = null;
 	        InputStream is = null;
+	        OutputStream cos = null;
+	        FileOutputStream fos = null;
+	        
+	        File temp = null;
 	        
 	        try{
 	        	file = getPreFile();
 	        
 		        if(file == null){
 		        	os = new PredefinedBAOS(size);
+		        	
+		        	//write the cache file while downloading instead of queueing the bytes after the callback
+		        	temp = getCacheTemp();
+		        	if(temp != null){
+		        		fos = new FileOutputStream(temp);
+		        		cos = new BufferedOutputStream(fos);
+		        	}
+		        }else if(partial != null){
+		        	
+		        	//206 continues the partial file, anything else is the full content
+		        	boolean append = code == 206 && offset > 0;
+		        	AQUtility.debug("append", append);
+
+		        	if(append){
+		        		Header range = response.getFirstHeader("Content-Range");
+		        		if(range == null || !range.getValue().startsWith("bytes " + offset + "-")){
+		        			deletePartial();
+		        			throw new IOException("Unexpected content range");
+		        		}
+		        	}
+		        	
+		        	writeValidator(partial, response);
+		        	fos = new FileOutputStream(partial, append);
+		        	os = new BufferedOutputStream(fos);
 		        }else{
-		        	file.createNewFile();
-		        	os = new BufferedOutputStream(new FileOutputStream(file));
+		        	//the target is only replaced once the download is complete
+		        	temp = AQUtility.createTempFile(file);
+		        	fos = new FileOutputStream(temp);
+		        	os = new BufferedOutputStream(fos);
 		        }
 		        
 		        //AQUtility.time("copy");
 		        
-		        copy(entity.getContent(), os, getEncoding(entity), (int) entity.getContentLength());
+		        OutputStream target = os;
+		        
+		        if(cos != null){
+		        	target = new TeeOutputStream(os, cos);
+		        }
+		        
+		        if(file == null && pageSize > 0 && JSONArray.class.equals(type)){
+		        	target = streamer = new JSONArrayStream(this, target, encoding, pageSize);
+		        }
+		        
+		        if(xmlSelector != null && (partial == null || code != 206)){
+		        	copyXml(entity.getContent(), target, getEncoding(entity), toLength(length));
+		        }else{
+		        	copy(entity.getContent(), target, getEncoding(entity), toLength(length));
+		        }
 		        
 		        //AQUtility.timeEnd("copy", 0);
 		        
@@ -1577,7 +2466,26 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		        
 		        if(file == null){
 		        	data = ((PredefinedBAOS) os).toByteArray();
+		        	
+		        	if(cos != null){
+		        		cos.flush();
+		        		AQUtility.sync(fos);
+		        		cos.close();
+		        		cos = null;
+		        		setCacheTemp(temp, data);
+		        		temp = null;
+		        	}
 		        }else{
+		        	
+		        	AQUtility.sync(fos);
+		        	AQUtility.close(os);
+		        	
+		        	if(partial != null){
+		        		completePartial(partial, file);
+		        	}else if(AQUtility.commit(temp, file)){
+		        		temp = null;
+		        	}
+		        	
 		        	if(!file.exists() || file.length() == 0){
 		        		file = null;
 		        	}
@@ -1586,6 +2494,12 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	        }finally{
 	        	AQUtility.close(is);
 	        	AQUtility.close(os);
+	        	AQUtility.close(cos);
+	        	
+	        	//incomplete download
+	        	if(temp != null){
+	        		temp.delete();
+	        	}
 	        }
 	        
         }
@@ -1601,6 +2515,94 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	
+	//the temp file holds the teed data, as received
+	private void setCacheTemp(File temp, byte[] data){
+		
+		//a temp file from a previous attempt, such as before a retry or reauth
+		if(cacheTemp != null){
+			cacheTemp.delete();
+		}
+		
+		cacheTemp = temp;
+		cacheTeed = data;
+	}
+	
+	private static final String PARTIAL = ".part";
+	private static final String VALIDATOR = ".tag";
+	
+	private static File getPartialFile(File target){
+		return new File(target.getPath() + PARTIAL);
+	}
+	
+	private static File getValidatorFile(File partial){
+		return new File(partial.getPath() + VALIDATOR);
+	}
+	
+	private static String readValidator(File partial){
+		
+		File file = getValidatorFile(partial);
+		if(!file.exists() || !partial.exists()) return null;
+		
+		try{
+			byte[] data = AQUtility.toBytes(new FileInputStream(file));
+			if(data == null || data.length == 0) return null;
+			return new String(data, "UTF-8");
+		}catch(Exception e){
+			AQUtility.debug(e);
+			return null;
+		}
+		
+	}
+	
+	private static void writeValidator(File partial, HttpResponse response) throws IOException{
+		
+		//If-Range only accepts a strong etag, fallback to last modified date
+		String validator = null;
+		
+		Header etag = response.getFirstHeader("ETag");
+		if(etag != null && !etag.getValue().startsWith("W/")){
+			validator = etag.getValue();
+		}else{
+			Header modified = response.getFirstHeader("Last-Modified");
+			if(modified != null){
+				validator = modified.getValue();
+			}
+		}
+		
+		File file = getValidatorFile(partial);
+		
+		if(validator == null){
+			file.delete();
+		}else{
+			AQUtility.write(file, validator.getBytes("UTF-8"));
+		}
+		
+	}
+	
+	private static void completePartial(File partial, File target) throws IOException{
+		
+		if(target.exists()){
+			target.delete();
+		}
+		
+		if(!partial.renameTo(target)){
+			throw new IOException("Cannot rename " + partial + " to " + target);
+		}
+		
+		getValidatorFile(partial).delete();
+		
+	}
+	
+	private boolean deletePartial(){
+		
+		if(!resume || targetFile == null) return false;
+		
+		File partial = getPartialFile(targetFile);
+		getValidatorFile(partial).delete();
+		
+		return partial.delete();
+	}
+	
 	private String getEncoding(HttpEntity entity){
 		
 		if(entity == null) return null;
@@ -1612,12 +2614,41 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 	}
 	
+	private static final int MAX_PRESIZE = 1024 * 64;
+	
+	//a length over 2GB is reported as unknown instead of overflowing
+	private static int toLength(long length){
+		return length > Integer.MAX_VALUE ? -1 : (int) length;
+	}
+	
 	private void copy(InputStream is, OutputStream os, String encoding, int max) throws IOException{
 		
 		if("gzip".equalsIgnoreCase(encoding)){
 			is = new GZIPInputStream(is);
 		}
 		
+		AQUtility.copy(is, os, max, getProgress());
+		
+		
+	}
+	
+	//parse from the socket while the bytes are written to the cache file
+	private void copyXml(InputStream is, OutputStream os, String encoding, int max) throws IOException{
+		
+		if("gzip".equalsIgnoreCase(encoding)){
+			is = new GZIPInputStream(is);
+		}
+		
+		TeeInputStream tee = new TeeInputStream(this, is, os, max, getProgress());
+		
+		streamXml(tee);
+		
+		tee.drain();
+		
+	}
+	
+	private Progress getProgress(){
+		
 		Object o = null;
 		
 		if(progress != null){
@@ -1630,9 +2661,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			p = new Progress(o); 
 		}
 		
-		AQUtility.copy(is, os, max, p);
-		
-		
+		return p;
 	}
 	
 	
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.androidquery.util.AQUtility;
+
+/**
+ * The pending result of an ajax request.
+ *
+ * A failed request completes the future with a null result, check getStatus() for the response code.
+ * Cancelling the future aborts the underlying request and cancels the futures chained to it.
+ *
+ * Chained functions run on the thread that completes the future (the UI thread by default) unless an executor is supplied.
+ *
+ * @param <T> the result type
+ */
+public class AjaxFuture<T> implements Future<T>{
+
+	/**
+	 * Transform the result of a completed request.
+	 */
+	public interface Function<A, B>{
+		public B apply(A value, AjaxStatus status) throws Exception;
+	}
+
+	/**
+	 * Start a dependent request with the result of a completed request.
+	 */
+	public interface Compose<A, B>{
+		public AjaxFuture<B> apply(A value, AjaxStatus status) throws Exception;
+	}
+
+	private static final Executor INLINE = new Executor(){
+
+		@Override
+		public void execute(Runnable command){
+			command.run();
+		}
+	};
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private AbstractAjaxCallback<?, ?> cb;
+	private Future<?> upstream;
+	private List<Runnable> listeners;
+	private volatile boolean cancelled;
+	private volatile boolean done;
+	private T result;
+	private AjaxStatus status;
+
+	protected AjaxFuture(AbstractAjaxCallback<?, ?> cb){
+		this.cb = cb;
+	}
+
+	private AjaxFuture(Future<?> upstream){
+		this.upstream = upstream;
+	}
+
+	void complete(T result, AjaxStatus status){
+
+		List<Runnable> run = null;
+
+		synchronized(this){
+
+			if(done) return;
+
+			this.result = result;
+			this.status = status;
+			this.done = true;
+			this.cb = null;
+
+			run = listeners;
+			listeners = null;
+		}
+
+		latch.countDown();
+
+		if(run != null){
+			for(Runnable r: run){
+				r.run();
+			}
+		}
+
+	}
+
+	private void listen(Runnable r){
+
+		synchronized(this){
+
+			if(!done){
+				if(listeners == null){
+					listeners = new ArrayList<Runnable>();
+				}
+				listeners.add(r);
+				return;
+			}
+		}
+
+		r.run();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning){
+
+		AbstractAjaxCallback<?, ?> cb = null;
+		Future<?> upstream = null;
+
+		synchronized(this){
+
+			if(done) return false;
+
+			cancelled = true;
+			cb = this.cb;
+			upstream = this.upstream;
+		}
+
+		if(cb != null){
+			cb.abort();
+		}
+
+		if(upstream != null){
+			upstream.cancel(mayInterruptIfRunning);
+		}
+
+		complete(null, new AjaxStatus(AjaxStatus.NETWORK_ERROR, "cancelled"));
+
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled(){
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone(){
+		return done;
+	}
+
+	/**
+	 * Wait until the request is completed and return the result. This method cannot be called on the UI thread.
+	 *
+	 * @return the result, null if the request failed
+	 */
+	@Override
+	public T get() throws InterruptedException{
+
+		ensureNotUIThread();
+
+		latch.await();
+
+		return getResult();
+	}
+
+	/**
+	 * Wait at most the given time for the request to complete and return the result. This method cannot be called on the UI thread.
+	 *
+	 * @return the result, null if the request failed
+	 * @throws TimeoutException if the request is not completed in time
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException{
+
+		ensureNotUIThread();
+
+		if(!latch.await(timeout, unit)){
+			throw new TimeoutException();
+		}
+
+		return getResult();
+	}
+
+	private T getResult(){
+
+		if(cancelled){
+			throw new CancellationException();
+		}
+
+		return result;
+	}
+
+	private static void ensureNotUIThread(){
+
+		if(AQUtility.isUIThread()){
+			throw new IllegalStateException("Cannot block UI thread.");
+		}
+	}
+
+	/**
+	 * Gets the ajax status. Returns null if the request is not completed.
+	 *
+	 * @return the status
+	 */
+	public AjaxStatus getStatus(){
+		return status;
+	}
+
+	/**
+	 * Transform the result once completed, on the completing thread.
+	 *
+	 * @param fn the function
+	 * @return the future of the transformed result
+	 */
+	public <R> AjaxFuture<R> then(Function<? super T, R> fn){
+		return then(fn, INLINE);
+	}
+
+	/**
+	 * Transform the result once completed, on the given executor.
+	 *
+	 * @param fn the function
+	 * @param executor the executor that runs the function
+	 * @return the future of the transformed result
+	 */
+	public <R> AjaxFuture<R> then(final Function<? super T, R> fn, final Executor executor){
+
+		final AjaxFuture<R> next = new AjaxFuture<R>(this);
+
+		listen(new Runnable(){
+
+			@Override
+			public void run(){
+
+				executor.execute(new Runnable(){
+
+					@Override
+					public void run(){
+
+						if(next.isDone()) return;
+
+						//a cancelled future cancels its chain
+						if(cancelled){
+							next.cancel(false);
+							return;
+						}
+
+						try{
+							next.complete(fn.apply(result, status), status);
+						}catch(Exception e){
+							AQUtility.debug(e);
+							next.complete(null, new AjaxStatus(AjaxStatus.TRANSFORM_ERROR, "transform error"));
+						}
+					}
+				});
+			}
+		});
+
+		return next;
+	}
+
+	/**
+	 * Start a dependent request once completed, on the completing thread.
+	 *
+	 * @param fn the function that starts the next request
+	 * @return the future of the next request
+	 */
+	public <R> AjaxFuture<R> thenCompose(Compose<? super T, R> fn){
+		return thenCompose(fn, INLINE);
+	}
+
+	/**
+	 * Start a dependent request once completed, on the given executor.
+	 *
+	 * @param fn the function that starts the next request
+	 * @param executor the executor that runs the function
+	 * @return the future of the next request
+	 */
+	public <R> AjaxFuture<R> thenCompose(final Compose<? super T, R> fn, final Executor executor){
+
+		final AjaxFuture<R> next = new AjaxFuture<R>(this);
+
+		listen(new Runnable(){
+
+			@Override
+			public void run(){
+
+				executor.execute(new Runnable(){
+
+					@Override
+					public void run(){
+
+						if(next.isDone()) return;
+
+						//a cancelled future cancels its chain
+						if(cancelled){
+							next.cancel(false);
+							return;
+						}
+
+						final AjaxFuture<R> inner;
+
+						try{
+							inner = fn.apply(result, status);
+						}catch(Exception e){
+							AQUtility.debug(e);
+							next.complete(null, new AjaxStatus(AjaxStatus.TRANSFORM_ERROR, "transform error"));
+							return;
+						}
+
+						if(inner == null){
+							next.complete(null, status);
+							return;
+						}
+
+						synchronized(next){
+							next.upstream = inner;
+						}
+
+						inner.listen(new Runnable(){
+
+							@Override
+							public void run(){
+								if(inner.isCancelled()){
+									next.cancel(false);
+								}else{
+									next.complete(inner.result, inner.status);
+								}
+							}
+						});
+
+					}
+				});
+			}
+		});
+
+		return next;
+	}
+
+}
@@ -55,6 +55,7 @@ public class AjaxStatus {
 	public static final int NETWORK_ERROR = -101;
 	public static final int AUTH_ERROR = -102;
 	public static final int TRANSFORM_ERROR = -103;
+	public static final int MEMORY_ERROR = -104;
 	
 	
 	private int code = 200;
@@ -71,6 +72,7 @@ public class AjaxStatus {
 	private boolean done;
 	private boolean invalid;
 	private boolean reauth;
+	private boolean negative;
 	private String error;
 	private HttpContext context;
 	private Header[] headers;
@@ -134,6 +136,11 @@ public class AjaxStatus {
 		return this;
 	}
 	
+	protected AjaxStatus negative(boolean negative){
+		this.negative = negative;
+		return this;
+	}
+	
 	protected AjaxStatus headers(Header[] headers){
 		this.headers = headers;
 		return this;
@@ -149,6 +156,14 @@ public class AjaxStatus {
 	protected AjaxStatus reset(){
 		this.duration = System.currentTimeMillis() - start;
 		this.done = false;
+		this.code = 200;
+		this.message = "OK";
+		this.error = null;
+		this.headers = null;
+		this.data = null;
+		this.file = null;
+		this.invalid = false;
+		this.negative = false;
 		close();
 		return this;
 	}
@@ -194,10 +209,20 @@ public class AjaxStatus {
 		return invalid;
 	}
 	
+	/**
+	 * Gets if the failure is remembered from an earlier request to the url, and no request was made.
+	 * The code is the code of the earlier failure. See AjaxCallback.setNegativeCache(boolean).
+	 *
+	 * @return negative cached
+	 */
+	public boolean getNegative() {
+		return negative;
+	}
+	
 	/**
 	 * Gets the http response code.
 	 * 
-	 * Can be also be NETWORK_ERROR, AUTH_ERROR, or TRANSFORM_ERROR.
+	 * Can be also be NETWORK_ERROR, AUTH_ERROR, TRANSFORM_ERROR, or MEMORY_ERROR.
 	 *
 	 * @return code
 	 */
@@ -20,9 +20,12 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
@@ -32,6 +35,7 @@ import org.apache.http.HttpHost;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
@@ -56,7 +60,11 @@ import com.androidquery.auth.AccountHandle;
 import com.androidquery.util.AQUtility;
 import com.androidquery.util.BitmapCache;
 import com.androidquery.util.Common;
+import com.androidquery.util.PredefinedBAOS;
 import com.androidquery.util.RatioDrawable;
+import com.androidquery.util.RoundedDrawable;
+import com.androidquery.util.TiledDrawable;
+import com.androidquery.util.WriteBuffer;
 
 
 /**
@@ -71,12 +79,27 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	private static int BIG_TPIXELS = 1000000;
 	
 	private static boolean DELAY_WRITE = false;
+	private static boolean VARIANT_CACHE = false;
+	private static final WriteBuffer writes = new WriteBuffer(2000, 1024 * 1024);
 	
 	private static Map<String, Bitmap> smallCache;
 	private static Map<String, Bitmap> bigCache;
 	private static Map<String, Bitmap> invalidCache;
+	private static Map<String, Set<String>> variants = new HashMap<String, Set<String>>();
+	
+	private static final int MAX_SIZES = 1000;
+	private static Map<String, int[]> sizes = new LinkedHashMap<String, int[]>(16, 0.75F, true){
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest){
+			return size() > MAX_SIZES;
+		}
+	};
 	
 	private static HashMap<String, WeakHashMap<ImageView, BitmapAjaxCallback>> queueMap = new HashMap<String, WeakHashMap<ImageView, BitmapAjaxCallback>>();	
+	private static WeakHashMap<ImageView, BitmapAjaxCallback> loading = new WeakHashMap<ImageView, BitmapAjaxCallback>();
 	
 	private WeakReference<ImageView> v;
 	private int targetWidth;
@@ -90,6 +113,15 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	private boolean targetDim = true;
 	private float anchor = AQuery.ANCHOR_DYNAMIC;
 	private boolean invalid;
+	private boolean outOfMemory;
+	private Config config;
+	private boolean autoConfig;
+	private boolean tiled;
+	private File tileFile;
+	private String thumbnail;
+	private BitmapAjaxCallback parent;
+	private boolean shown;
+	private boolean dequeued;
 	
 	
 	/**
@@ -215,7 +247,8 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	/**
 	 * Set the round corner radius.
 	 * 
-	 * Note that the current implementation transform the image to a new one and will use more transient resources.
+	 * The corners are clipped when the image is drawn, the memcached bitmap is not rounded.
+	 * A subclass that overrides the callback gets a rounded copy, so it can use the bitmap directly as before.
 	 *
 	 * @param radius
 	 * @return self
@@ -227,6 +260,57 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		return this;
 	}
 	
+	/**
+	 * Set the preferred bitmap config, such as Config.RGB_565 to use half the memory of the default ARGB_8888.
+	 *
+	 * @param config the config, null for the default
+	 * @return self
+	 */
+	public BitmapAjaxCallback config(Config config){
+		this.config = config;
+		return this;
+	}
+	
+	/**
+	 * Decode opaque images, which are JPEG images and PNG images without transparency, as RGB_565.
+	 * Ignored if a config is set.
+	 *
+	 * @param auto detect opaque images
+	 * @return self
+	 */
+	public BitmapAjaxCallback autoConfig(boolean auto){
+		this.autoConfig = auto;
+		return this;
+	}
+	
+	/**
+	 * Show very large images in tiles. A downsampled image is decoded first, and the visible part is decoded
+	 * from the cache file at the resolution it is shown at. Requires API 10 and a file cached image, otherwise the image is decoded as usual.
+	 * 
+	 * Tiled images are not memcached, the tiles are cached by the drawable. See TiledDrawable.
+	 *
+	 * @param tiled show in tiles
+	 * @return self
+	 */
+	public BitmapAjaxCallback tiled(boolean tiled){
+		this.tiled = tiled;
+		return this;
+	}
+	
+	/**
+	 * Set the url of a small version of the image. The small image is fetched first and shown scaled up until the image is loaded,
+	 * then the image cross fades in. Ignored if a preset bitmap is set.
+	 * 
+	 * There is no fetch priority, the thumbnail request is queued ahead of the image request.
+	 *
+	 * @param url the thumbnail url
+	 * @return self
+	 */
+	public BitmapAjaxCallback thumbnail(String url){
+		this.thumbnail = url;
+		return this;
+	}
+	
 
 	private static Bitmap decode(String path, byte[] data, BitmapFactory.Options options){
 		
@@ -301,8 +385,29 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	 * @return the resized image
 	 */
 	public static Bitmap getResizedImage(String path, byte[] data, int target, boolean width, int round){
+		try{
+			return getResizedImage(path, data, target, width, round, null, false);
+		}catch(OutOfMemoryError e){
+			AQUtility.report(e);
+			return null;
+		}
+	}
+	
+	//out of memory is not a failure of the image, it is flagged so the caller can tell it from a bad image
+	private Bitmap getResizedImage(String path, byte[] data, int target, boolean width){
+		try{
+			return getResizedImage(path, data, target, width, 0, config, autoConfig);
+		}catch(OutOfMemoryError e){
+			outOfMemory = true;
+			AQUtility.report(e);
+			return null;
+		}
+	}
+	
+	private static Bitmap getResizedImage(String path, byte[] data, int target, boolean width, int round, Config config, boolean auto){
     	
 		Options options = null;
+		String mime = null;
 		
 		if(target > 0){
 	    	
@@ -317,15 +422,26 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	       
 	        options = new Options();	        
 	        options.inSampleSize = ssize;	        
+	        
+	        mime = info.outMimeType;
     	
     	}
+		
+		if(config == null && auto && isOpaque(path, data, mime)){
+			config = Config.RGB_565;
+		}
+		
+		if(config != null){
+			if(options == null) options = new Options();
+			options.inPreferredConfig = config;
+		}
         
         Bitmap bm = null;
         try{
         	bm = decode(path, data, options);
 		}catch(OutOfMemoryError e){
 			clearCache();
-			AQUtility.report(e);
+			throw e;
 		}
         
 		if(round > 0){
@@ -337,6 +453,75 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
     }
 	
     
+    private static final int HEADER_SIZE = 1024 * 4;
+    
+    //jpeg, or png without an alpha channel or transparent color
+    private static boolean isOpaque(String path, byte[] data, String mime){
+    	
+    	if("image/jpeg".equals(mime)) return true;
+    	if(mime != null && !"image/png".equals(mime)) return false;
+    	
+    	byte[] header = data;
+    	int length = data == null ? 0 : data.length;
+    	
+    	if(header == null && path != null){
+    		
+    		header = new byte[HEADER_SIZE];
+    		FileInputStream fis = null;
+    		
+    		try{
+    			fis = new FileInputStream(path);
+    			int read;
+    			while(length < header.length && (read = fis.read(header, length, header.length - length)) != -1){
+    				length += read;
+    			}
+    		}catch(IOException e){
+    			AQUtility.debug(e);
+    			return false;
+    		}finally{
+    			AQUtility.close(fis);
+    		}
+    	}
+    	
+    	if(length < 26) return false;
+    	
+    	if((header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8){
+    		return true;
+    	}
+    	
+    	if((header[0] & 0xff) != 0x89 || header[1] != 'P' || header[2] != 'N' || header[3] != 'G'){
+    		return false;
+    	}
+    	
+    	//color type of the IHDR chunk, 4 and 6 have alpha
+    	int color = header[25];
+    	if(color != 0 && color != 2 && color != 3) return false;
+    	
+    	//a tRNS chunk before the image data makes a color transparent
+    	int pos = 8;
+    	
+    	while(pos + 8 <= length){
+    		
+    		int size = ((header[pos] & 0xff) << 24) | ((header[pos + 1] & 0xff) << 16) | ((header[pos + 2] & 0xff) << 8) | (header[pos + 3] & 0xff);
+    		String type = null;
+    		
+    		try{
+    			type = new String(header, pos + 4, 4, "US-ASCII");
+    		}catch(UnsupportedEncodingException e){
+    			return false;
+    		}
+    		
+    		if("tRNS".equals(type)) return false;
+    		if("IDAT".equals(type)) return true;
+    		
+    		if(size < 0) return false;
+    		pos += size + 12;
+    	}
+    	
+    	//header too large to tell
+    	return false;
+    }
+    
     private static int sampleSize(int width, int target){
     	
     	int result = 1;
@@ -355,8 +540,20 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
     	return result;
     }
 	
+    private static final int TILE_BASE = 512;
+    
     private Bitmap bmGet(String path, byte[] data){    	
-    	return getResizedImage(path, data, targetWidth, targetDim, round);
+    	
+    	Bitmap bm;
+    	
+    	if(path != null && isTiled()){
+    		tileFile = new File(path);
+    		bm = getResizedImage(path, null, TILE_BASE, false);
+    	}else{
+    		bm = getResizedImage(path, data, targetWidth, targetDim);
+    	}
+    	
+    	return sized(bm);
     	
     }
    
@@ -373,7 +570,109 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
     
 	@Override
 	protected Bitmap fileGet(String url, File file, AjaxStatus status) {		
-		return bmGet(file.getAbsolutePath(), null);
+		
+		if(isTiled()){
+			return bmGet(file.getAbsolutePath(), null);
+		}
+		
+		File variant = getVariantFile(url);
+		
+		if(variant == null){
+			return bmGet(file.getAbsolutePath(), null);
+		}
+		
+		//a variant older than the source image is stale
+		if(variant.lastModified() >= file.lastModified()){
+			Bitmap bm = getResizedImage(variant.getAbsolutePath(), null, 0, targetDim);
+			if(bm != null) return sized(bm);
+		}
+		
+		Bitmap bm = bmGet(file.getAbsolutePath(), null);
+		
+		if(bm != null){
+			variantPut(variant, bm, file.length());
+		}
+		
+		return bm;
+	}
+	
+	//scale down the smallest memcached variant of the url that is large enough, instead of decoding the file
+	@Override
+	protected Bitmap scaledGet(String url){
+		
+		if(!memCache || targetWidth <= 0 || isTiled()) return null;
+		
+		String[] keys;
+		
+		synchronized(variants){
+			Set<String> set = variants.get(url);
+			if(set == null) return null;
+			keys = set.toArray(new String[set.size()]);
+		}
+		
+		Bitmap best = null;
+		int bestDim = 0;
+		String mode = getMode(config, autoConfig);
+		
+		for(String key: keys){
+			
+			if(!isMode(url, key, mode)) continue;
+			
+			Bitmap bm = getBCache().get(key);
+			if(bm == null) bm = getSCache().get(key);
+			if(bm == null) continue;
+			
+			int dim = bm.getWidth();
+			if(!targetDim) dim = Math.max(dim, bm.getHeight());
+			
+			if(dim >= targetWidth && (best == null || dim < bestDim)){
+				best = bm;
+				bestDim = dim;
+			}
+		}
+		
+		if(best == null) return null;
+		
+		int ssize = sampleSize(bestDim, targetWidth);
+		if(ssize == 1) return best;
+		
+		try{
+			return Bitmap.createScaledBitmap(best, best.getWidth() / ssize, best.getHeight() / ssize, true);
+		}catch(OutOfMemoryError e){
+			clearCache();
+			AQUtility.report(e);
+			return null;
+		}
+	}
+	
+	private File getVariantFile(String url){
+		
+		if(!VARIANT_CACHE || targetWidth <= 0) return null;
+		
+		File dir = getCacheDir();
+		if(dir == null) return null;
+		
+		//prefixed so local file paths are hashed as well
+		return AQUtility.getCacheFile(dir, "variant:" + getKey(url, targetWidth));
+	}
+	
+	private void variantPut(File variant, Bitmap bm, long sourceLength){
+		
+		PredefinedBAOS baos = new PredefinedBAOS(bm.getWidth() * bm.getHeight() / 2);
+		
+		//keep the alpha channel of transparent images
+		if(bm.hasAlpha()){
+			bm.compress(CompressFormat.PNG, 100, baos);
+		}else{
+			bm.compress(CompressFormat.JPEG, 90, baos);
+		}
+		
+		//not worth it if the source image is already as small
+		if(baos.size() >= sourceLength){
+			return;
+		}
+		
+		AQUtility.storeAsync(variant, baos.toByteArray(), 0);
 	}
 	
 	
@@ -389,6 +688,8 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		}
 		
 		
+		outOfMemory = false;
+		
 		Bitmap bm = bmGet(path, data);
 		
 		if(bm == null){
@@ -401,7 +702,15 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 				bm = preset;
 			}
 			
-			if(status.getCode() != 200){
+			if(outOfMemory){
+				//not remembered as a failure of the url, the next request decodes it again
+				status.code(AjaxStatus.MEMORY_ERROR).message("out of memory");
+				invalid = true;
+			}else if(status.getCode() != 200){
+				invalid = true;
+			}else if(status.getSource() == AjaxStatus.NETWORK && (data != null || path != null)){
+				//downloaded but not an image, remembered as a failure of the url
+				status.code(AjaxStatus.TRANSFORM_ERROR).message("transform error");
 				invalid = true;
 			}
 		}
@@ -439,13 +748,13 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	public static Bitmap getMemoryCached(Context context, int resId){
 		
 		String key = Integer.toString(resId);			
-		Bitmap bm = memGet(key, 0, 0);
+		Bitmap bm = memGet(key, 0);
 		
 		if(bm == null){
 			bm = BitmapFactory.decodeResource(context.getResources(), resId);
 			
 			if(bm != null){
-				memPut(key, 0, 0, bm, false);
+				memPut(key, 0, bm, false);
 			}
 		}
 		
@@ -465,7 +774,9 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	public final void callback(String url, Bitmap bm, AjaxStatus status) {
 		
 		ImageView firstView = v.get();
-		WeakHashMap<ImageView, BitmapAjaxCallback> ivs = queueMap.remove(url);
+		
+		//the entry of an aborted recycled request may belong to a newer request of the url
+		WeakHashMap<ImageView, BitmapAjaxCallback> ivs = dequeued ? null : queueMap.remove(url);
 		
 		//check if view queue already contains first view 
 		if(ivs == null || !ivs.containsKey(firstView)){
@@ -479,6 +790,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 			for(ImageView view: set){
 				BitmapAjaxCallback cb = ivs.get(view);
 				cb.status = status;				
+				cb.tileFile = tileFile;
 				checkCb(cb, url, view, bm, status);
 			}
 		
@@ -488,7 +800,9 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	@Override
 	protected void skip(String url, Bitmap bm, AjaxStatus status){
-		queueMap.remove(url);
+		if(!dequeued){
+			queueMap.remove(url);
+		}
 	}
 	
 	
@@ -496,10 +810,12 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 		if(v == null || cb == null) return;
 		
-		if(url.equals(v.getTag(AQuery.TAG_URL))){			
+		if(cb.parent != null){
+			cb.parent.thumbnailShow(v, bm);
+		}else if(url.equals(v.getTag(AQuery.TAG_URL))){			
 		
 			if(v instanceof ImageView){
-				cb.callback(url, (ImageView) v, bm, status);
+				cb.callback(url, (ImageView) v, cb.rounded(bm), status);
 			}else{
 				setBitmap(url, v, bm, false);
 			}
@@ -513,6 +829,19 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		setBitmap(url, iv, bm, false);
 	}
 	
+	//a custom callback may use the bitmap without the drawable that clips the corners
+	private Bitmap rounded(Bitmap bm){
+		
+		if(round <= 0 || bm == null || bm == dummy || getClass() == BitmapAjaxCallback.class) return bm;
+		
+		try{
+			return getRoundedCornerBitmap(bm, round);
+		}catch(OutOfMemoryError e){
+			AQUtility.report(e);
+			return bm;
+		}
+	}
+	
 
 	/**
 	 * Sets the icon cache size in count. Icons are images less than 50x50 pixels.
@@ -538,6 +867,8 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	 * Sets the file cache write policy. If set to true, images load from network will be served quicker before caching to disk,
 	 * this however increase the chance of out of memory due to memory allocation.
 	 * 
+	 * Delayed writes are written in batches, see onLowMemory() and onTrimMemory(int) to flush them early.
+	 * 
 	 * Default is false.
 	 *
 	 * @param limit the new cache limit
@@ -548,6 +879,18 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	
 	
+	/**
+	 * Sets the variant file cache policy. If set to true, downsampled images are file cached after they are decoded,
+	 * so a memcache miss reads the small variant instead of decoding the original image again.
+	 * 
+	 * Default is false.
+	 *
+	 * @param cache cache variants
+	 */
+	public static void setVariantCache(boolean cache){
+		VARIANT_CACHE = cache;
+	}
+	
 	/**
 	 * Sets the pixel limit per image. Image larger than limit will not be memcached.
 	 *
@@ -587,6 +930,126 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		bigCache = null;
 		smallCache = null;
 		invalidCache = null;
+		
+		synchronized(variants){
+			variants.clear();
+		}
+	}
+	
+	/**
+	 * Flush the delayed file cache writes and clear the bitmap memcache. Call this method in Application.onLowMemory().
+	 */
+	public static void onLowMemory(){
+		writes.flushAsync();
+		clearCache();
+	}
+	
+	/**
+	 * Flush the delayed file cache writes, and clear the bitmap memcache if the app is in the background.
+	 * Call this method in Application.onTrimMemory(int).
+	 *
+	 * @param level the trim level
+	 */
+	public static void onTrimMemory(int level){
+		
+		writes.flushAsync();
+		
+		//ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+		if(level >= 40){
+			clearCache();
+		}
+	}
+	
+	//pending delayed writes are dropped if the image is evicted before the flush
+	private static Map<String, Bitmap> newCache(int mc, int mp, int mtp){
+		
+		return Collections.synchronizedMap(new BitmapCache(mc, mp, mtp){
+			
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void evicted(String key){
+				
+				String url = getUrl(key);
+				boolean last = removeVariant(url, key);
+				
+				//the pending write is still needed while another size of the url is memcached
+				if(DELAY_WRITE && last){
+					writes.drop(url);
+				}
+			}
+		});
+	}
+	
+	//index of the memcached sizes of a url
+	private static void addVariant(String url, String key){
+		
+		synchronized(variants){
+			
+			Set<String> set = variants.get(url);
+			
+			if(set == null){
+				set = new HashSet<String>();
+				variants.put(url, set);
+			}
+			
+			set.add(key);
+		}
+	}
+	
+	//returns true if no size of the url is left
+	private static boolean removeVariant(String url, String key){
+		
+		synchronized(variants){
+			
+			Set<String> set = variants.get(url);
+			if(set == null) return true;
+			
+			set.remove(key);
+			
+			if(set.isEmpty()){
+				variants.remove(url);
+				return true;
+			}
+			
+			return false;
+		}
+	}
+	
+	//reverse of getKey
+	private static String getUrl(String key){
+		
+		int mode = key.lastIndexOf('@');
+		if(mode != -1 && isModeName(key.substring(mode + 1))){
+			key = key.substring(0, mode);
+		}
+		
+		int index = key.lastIndexOf('#');
+		if(index == -1 || !isDigits(key, index + 1)) return key;
+		
+		return key.substring(0, index);
+	}
+	
+	private static boolean isModeName(String name){
+		
+		if("auto".equals(name)) return true;
+		
+		try{
+			Config.valueOf(name);
+			return true;
+		}catch(IllegalArgumentException e){
+			return false;
+		}
+	}
+	
+	private static boolean isDigits(String str, int start){
+		
+		if(start >= str.length()) return false;
+		
+		for(int i = start; i < str.length(); i++){
+			if(!Character.isDigit(str.charAt(i))) return false;
+		}
+		return true;
 	}
 	
 	protected static void clearTasks(){
@@ -595,7 +1058,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	private static Map<String, Bitmap> getBCache(){
 		if(bigCache == null){
-			bigCache = Collections.synchronizedMap(new BitmapCache(BIG_MAX, BIG_PIXELS, BIG_TPIXELS));
+			bigCache = newCache(BIG_MAX, BIG_PIXELS, BIG_TPIXELS);
 		}
 		return bigCache;
 	}
@@ -603,7 +1066,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	private static Map<String, Bitmap> getSCache(){
 		if(smallCache == null){
-			smallCache = Collections.synchronizedMap(new BitmapCache(SMALL_MAX, SMALL_PIXELS, 250000));
+			smallCache = newCache(SMALL_MAX, SMALL_PIXELS, 250000);
 		}
 		return smallCache;
 	}
@@ -618,8 +1081,8 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	@Override
 	protected Bitmap memGet(String url){		
 		if(bm != null) return bm;
-		if(!memCache) return null;
-		return memGet(url, targetWidth, round);
+		if(!memCache || isTiled()) return null;
+		return memGet(url, targetWidth, getMode(config, autoConfig));
 	}
 	
 	/**
@@ -640,56 +1103,89 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	 * @return the memory cached bitmap
 	 */
 	public static Bitmap getMemoryCached(String url, int targetWidth){
-		return memGet(url, targetWidth, 0);
+		return memGet(url, targetWidth, null);
+	}
+	
+	private static Bitmap memGet(String url, int targetWidth){
+		return memGet(url, targetWidth, null);
 	}
 	
-	private static Bitmap memGet(String url, int targetWidth, int round){
+	private static Bitmap memGet(String url, int targetWidth, String mode){
 		
-		url = getKey(url, targetWidth, round);
+		String key = getKey(url, targetWidth, mode);
 		
 		Map<String, Bitmap> cache = getBCache();
-		Bitmap result = cache.get(url);
+		Bitmap result = cache.get(key);
 		
 		if(result == null){
 			cache = getSCache();
-			result = cache.get(url);
+			result = cache.get(key);
 		}
 		
 		if(result == null){
 			cache = getICache();
-			result = cache.get(url);
+			result = cache.get(key);
 			
-			if(result != null){
-				
-				if(getLastStatus() == 200){
-					invalidCache = null;
-					result = null;
-				}
-				
+			//the fallback of a failed url is shown until the failure expires
+			if(result != null && getNegativeCache().get(url) == 0){
+				cache.remove(key);
+				result = null;
 			}
 		}
 		
 		return result;
 	}
 	
-	private static String getKey(String url, int targetWidth, int round){
+	//round corners are applied when drawn and not part of the key
+	private static String getKey(String url, int targetWidth){
+		return getKey(url, targetWidth, null);
+	}
+	
+	private static String getKey(String url, int targetWidth, String mode){
 		
 		if(targetWidth > 0){
 			url += "#" + targetWidth;
 		}
 		
-		if(round > 0){
-			url += "#" + round;
+		//a bitmap decoded with a non default config is not shared with requests of the default
+		if(mode != null){
+			url += "@" + mode;
 		}
 		
 		return url;
 	}
 	
-	private static void memPut(String url, int targetWidth, int round, Bitmap bm, boolean invalid){
+	private static String getMode(Config config, boolean auto){
+		
+		if(config != null){
+			return config.name();
+		}
+		
+		return auto ? "auto" : null;
+	}
+	
+	//if the memcache key of a variant is of the same config
+	private static boolean isMode(String url, String key, String mode){
+		
+		String suffix = key.substring(url.length());
+		
+		if(mode == null){
+			return suffix.indexOf('@') < 0;
+		}
+		
+		return suffix.endsWith("@" + mode);
+	}
+	
+	private static void memPut(String url, int targetWidth, Bitmap bm, boolean invalid){
+		memPut(url, targetWidth, null, bm, invalid);
+	}
+	
+	private static void memPut(String url, int targetWidth, String mode, Bitmap bm, boolean invalid){
 		
 		if(bm == null) return;
 		
-		int pixels = bm.getWidth() * bm.getHeight();
+		//same measure as the cache limits, a RGB_565 image counts as half
+		int pixels = bm.getRowBytes() * bm.getHeight() / 4;
 		
 		Map<String, Bitmap> cache = null;
 		
@@ -701,28 +1197,36 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 			cache = getBCache();
 		}
 		
-		if(targetWidth > 0 || round > 0){
-			
-			String key = getKey(url, targetWidth, round);			
-			cache.put(key, bm);
-			
-			//to indicate that the variant of that url is cached by puting and empty value
-			if(!cache.containsKey(url)){
-				cache.put(url, null);
-			}
-			
-		}else{
-			cache.put(url, bm);
-		}
+		String key = getKey(url, targetWidth, mode);
+		cache.put(key, bm);
 		
+		//to indicate that the variant of that url is cached by puting and empty value
+		if(!key.equals(url) && !cache.containsKey(url)){
+			cache.put(url, null);
+		}
 		
+		if(!invalid){
+			addVariant(url, key);
+		}
 		
 	}
 	
 	
 	@Override
 	protected void memPut(String url, Bitmap bm){
-		memPut(url, targetWidth, round, bm, invalid);
+		//an aborted result is not a failure of the url
+		if(isTiled() || isAborted()) return;
+		memPut(url, targetWidth, getMode(config, autoConfig), bm, invalid);
+	}
+	
+	@Override
+	protected boolean isNegativeCacheable(){
+		//a broken image url shows the fallback until the failure expires
+		return getUrl() != null;
+	}
+	
+	private boolean isTiled(){
+		return tiled && TiledDrawable.isSupported();
 	}
 	
 	
@@ -756,8 +1260,68 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 				
 				setBitmap(url, v, null, true);
 			}
+			
+			presize(url, v);
+		}
+		
+	}
+	
+	//size the view before the image arrives, so the list does not jump when it does
+	private void presize(String url, ImageView v){
+		
+		if(ratio <= 0) return;
+		
+		if(ratio == AQuery.RATIO_PRESERVE){
+			int[] size = getImageSize(url);
+			if(size != null){
+				RatioDrawable.presize(v, ratio, size[0], size[1]);
+			}
+		}else{
+			RatioDrawable.presize(v, ratio, 1, 1);
 		}
+	}
+	
+	private Bitmap sized(Bitmap bm){
+		
+		String url = getUrl();
+		
+		if(bm != null && url != null){
+			setImageSize(url, bm.getWidth(), bm.getHeight());
+		}
+		
+		return bm;
+	}
+	
+	/**
+	 * Gets the size of an image decoded before, such as to size a view before the image is loaded.
+	 * The size is of the decoded bitmap and is only exact in aspect ratio if the image was downsampled.
+	 * Sizes of the last 1000 images are kept.
+	 *
+	 * @param url the url
+	 * @return the width and height, or null if not known
+	 */
+	public static int[] getImageSize(String url){
+		
+		synchronized(sizes){
+			return sizes.get(url);
+		}
+	}
+	
+	/**
+	 * Sets the size of an image before it is loaded, such as the dimensions given by an api response.
+	 * Image views with AQuery.RATIO_PRESERVE are sized with it before the image arrives.
+	 *
+	 * @param url the url
+	 * @param width the image width
+	 * @param height the image height
+	 */
+	public static void setImageSize(String url, int width, int height){
+		
+		if(url == null || width <= 0 || height <= 0) return;
 		
+		synchronized(sizes){
+			sizes.put(url, new int[]{width, height});
+		}
 	}
 	
 	
@@ -766,27 +1330,69 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	private void setBitmap(String url, ImageView iv, Bitmap bm, boolean isPreset){
 		
 		if(bm == null){
-			iv.setImageDrawable(null);
+			setDrawable(iv, null);
 			return;
 		}
 		
 		if(isPreset){
-			iv.setImageDrawable(makeDrawable(iv, bm, ratio, anchor));
+			setDrawable(iv, makeDrawable(iv, bm, ratio, anchor, round, null));
 			return;
 		}
 		
+		shown = true;
+		
+		if(loading.get(iv) == this){
+			loading.remove(iv);
+		}
+		
 		if(status != null){
-			setBmAnimate(iv, bm, preset, fallback, animation, ratio, anchor, status.getSource());
+			File tiles = isTiled() ? tileFile : null;
+			
+			//cross fade from the thumbnail
+			int anim = animation;
+			if(thumbnail != null && preset != null && anim == 0){
+				anim = AQuery.FADE_IN;
+			}
+			
+			setBmAnimate(iv, bm, preset, fallback, anim, ratio, anchor, round, tiles, status.getSource());
 		}
 		
 	}
 
-	private static Drawable makeDrawable(ImageView iv, Bitmap bm, float ratio, float anchor){
+	//release the tiles of a replaced tiled image
+	private static void setDrawable(ImageView iv, Drawable d){
+		
+		Drawable old = iv.getDrawable();
+		
+		if(old instanceof TransitionDrawable){
+			TransitionDrawable td = (TransitionDrawable) old;
+			for(int i = 0; i < td.getNumberOfLayers(); i++){
+				recycle(td.getDrawable(i), d);
+			}
+		}else{
+			recycle(old, d);
+		}
+		
+		iv.setImageDrawable(d);
+	}
+	
+	private static void recycle(Drawable old, Drawable d){
+		
+		if(old instanceof TiledDrawable && old != d){
+			((TiledDrawable) old).recycle();
+		}
+	}
+	
+	private static Drawable makeDrawable(ImageView iv, Bitmap bm, float ratio, float anchor, int round, File tiles){
 		
 		BitmapDrawable bd = null;
 		
-		if(ratio > 0){
-			bd = new RatioDrawable(iv.getResources(), bm, iv, ratio, anchor);
+		if(tiles != null){
+			bd = new TiledDrawable(iv.getResources(), bm, tiles);
+		}else if(ratio > 0){
+			bd = new RatioDrawable(iv.getResources(), bm, iv, ratio, anchor, round);
+		}else if(round > 0){
+			bd = new RoundedDrawable(iv.getResources(), bm, round);
 		}else{
 			bd = new BitmapDrawable(iv.getResources(), bm);
 		}
@@ -795,15 +1401,15 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 	}
 	
-	private static void setBmAnimate(ImageView iv, Bitmap bm, Bitmap preset, int fallback, int animation, float ratio, float anchor, int source){
+	private static void setBmAnimate(ImageView iv, Bitmap bm, Bitmap preset, int fallback, int animation, float ratio, float anchor, int round, File tiles, int source){
 		
 		bm = filter(iv, bm, fallback);
 		if(bm == null){
-			iv.setImageBitmap(null);
+			setDrawable(iv, null);
 			return;
 		}
 		
-		Drawable d = makeDrawable(iv, bm, ratio, anchor);
+		Drawable d = makeDrawable(iv, bm, ratio, anchor, round, tiles);
 		Animation anim = null;
 		
 		if(fadeIn(animation, source)){	
@@ -813,7 +1419,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 				anim.setDuration(FADE_DUR);
 			}else{
 				
-				Drawable pd = makeDrawable(iv, preset, ratio, anchor);
+				Drawable pd = makeDrawable(iv, preset, ratio, anchor, round, null);
 				Drawable[] ds = new Drawable[]{pd, d};
 				TransitionDrawable td = new TransitionDrawable(ds);
 				td.setCrossFadeEnabled(true);				
@@ -824,7 +1430,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 			anim = AnimationUtils.loadAnimation(iv.getContext(), animation);
 		}
 		
-		iv.setImageDrawable(d);
+		setDrawable(iv, d);
 		
 		if(anim != null){
 			anim.setStartTime(AnimationUtils.currentAnimationTimeMillis());		
@@ -859,7 +1465,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	public static void async(Activity act, Context context, ImageView iv, String url, Object progress, AccountHandle ah, ImageOptions options, HttpHost proxy, String networkUrl){
 	
-		async(act, context, iv, url, options.memCache, options.fileCache, options.targetWidth, options.fallback, options.preset, options.animation, options.ratio, options.anchor, progress, ah, options.policy, options.round, proxy, networkUrl);
+		async(act, context, iv, url, options.memCache, options.fileCache, options.targetWidth, options.fallback, options.preset, options.animation, options.ratio, options.anchor, progress, ah, options.policy, options.round, proxy, networkUrl, options.config, options.autoConfig);
 		
 	}
 	
@@ -873,20 +1479,25 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	 */
 	
 	public static void async(Activity act, Context context, ImageView iv, String url, boolean memCache, boolean fileCache, int targetWidth, int fallbackId, Bitmap preset, int animation, float ratio, float anchor, Object progress, AccountHandle ah, int policy, int round, HttpHost proxy, String networkUrl){
+		async(act, context, iv, url, memCache, fileCache, targetWidth, fallbackId, preset, animation, ratio, anchor, progress, ah, policy, round, proxy, networkUrl, null, false);
+	}
+	
+	private static void async(Activity act, Context context, ImageView iv, String url, boolean memCache, boolean fileCache, int targetWidth, int fallbackId, Bitmap preset, int animation, float ratio, float anchor, Object progress, AccountHandle ah, int policy, int round, HttpHost proxy, String networkUrl, Config config, boolean autoConfig){
 		
 		Bitmap bm = null;
 		
 		if(memCache){
-			bm = memGet(url, targetWidth, round);
+			bm = memGet(url, targetWidth, getMode(config, autoConfig));
 		}
 		
 		if(bm != null){
+			abortRecycled(iv, url, null);
 			iv.setTag(AQuery.TAG_URL, url);		
 			Common.showProgress(progress, url, false);
-			setBmAnimate(iv, bm, preset, fallbackId, animation, ratio, anchor, AjaxStatus.MEMORY);
+			setBmAnimate(iv, bm, preset, fallbackId, animation, ratio, anchor, round, null, AjaxStatus.MEMORY);
 		}else{
 			BitmapAjaxCallback cb = new BitmapAjaxCallback();			
-			cb.url(url).imageView(iv).memCache(memCache).fileCache(fileCache).targetWidth(targetWidth).fallback(fallbackId).preset(preset).animation(animation).ratio(ratio).anchor(anchor).progress(progress).auth(ah).policy(policy).round(round).networkUrl(networkUrl);
+			cb.url(url).imageView(iv).memCache(memCache).fileCache(fileCache).targetWidth(targetWidth).fallback(fallbackId).preset(preset).animation(animation).ratio(ratio).anchor(anchor).progress(progress).auth(ah).policy(policy).round(round).networkUrl(networkUrl).config(config).autoConfig(autoConfig);
 			if(proxy != null){
 				cb.proxy(proxy.getHostName(), proxy.getPort());
 			}
@@ -916,14 +1527,32 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 		Bitmap bm = memGet(url);
 		if(bm != null){		
-			v.setTag(AQuery.TAG_URL, url);
+			if(parent == null){
+				abortRecycled(v, url, null);
+				v.setTag(AQuery.TAG_URL, url);
+			}
 			status = new AjaxStatus().source(AjaxStatus.MEMORY).done();
 			callback(url, bm, status);
 			return;
 		}
 		
-		
-		presetBitmap(url, v);
+		//a thumbnail request leaves the view to the image request
+		if(parent == null){
+			
+			boolean thumb = thumbnail != null && preset == null;
+			
+			if(thumb && memCache){
+				preset = memGet(thumbnail, targetWidth, getMode(config, autoConfig));
+			}
+			
+			presetBitmap(url, v);
+			abortRecycled(v, url, this);
+			
+			//queued ahead of the image, there is no fetch priority
+			if(thumb && preset == null && !cacheAvailable(v.getContext())){
+				thumbnailGet(v);
+			}
+		}
 		
 		if(!queueMap.containsKey(url)){
 			addQueue(url, v);	
@@ -936,11 +1565,65 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 	}
 	
+	//abort the image request of a view reused for another url, unless other views wait for the same image
+	private static void abortRecycled(ImageView v, String url, BitmapAjaxCallback next){
+		
+		BitmapAjaxCallback prev = next != null ? loading.put(v, next) : loading.remove(v);
+		if(prev == null || prev == next) return;
+		
+		String prevUrl = prev.getUrl();
+		
+		if(prevUrl != null && !prevUrl.equals(url) && queueMap.containsKey(prevUrl) && queueMap.get(prevUrl) == null){
+			AQUtility.debug("abort recycled", prevUrl);
+			prev.abort();
+			
+			//a later request of the url starts a new fetch instead of waiting on the aborted one
+			queueMap.remove(prevUrl);
+			prev.dequeued = true;
+		}
+	}
+	
+	private void thumbnailGet(ImageView v){
+		
+		BitmapAjaxCallback cb = new BitmapAjaxCallback();
+		cb.parent = this;
+		cb.url(thumbnail).imageView(v).memCache(memCache).fileCache(fileCache).targetWidth(targetWidth).config(config).autoConfig(autoConfig);
+		cb.async(v.getContext());
+	}
+	
+	private void thumbnailShow(ImageView v, Bitmap bm){
+		
+		String url = getUrl();
+		
+		//the image is not shown yet and the view still shows the same url
+		if(bm != null && !shown && preset == null && url != null && url.equals(v.getTag(AQuery.TAG_URL))){
+			preset = bm;
+			setBitmap(url, v, bm, true);
+		}
+	}
+	
 	@Override
 	protected boolean isStreamingContent(){
 		return !DELAY_WRITE;
 	}
 	
+	@Override
+	protected void filePut(String url, Bitmap bm, File file, byte[] data){
+		
+		if(DELAY_WRITE){
+			//batch the writes instead of a store task per image
+			writes.put(url, file, data);
+		}else{
+			super.filePut(url, bm, file, data);
+		}
+	}
+	
+	@Override
+	protected boolean isStreamingCache(){
+		//delay write keeps the disk free while decoding
+		return false;
+	}
+	
 	private void addQueue(String url, ImageView iv){
 		
 		
@@ -17,6 +17,11 @@ public class ImageOptions {
 	public float ratio;
 	public int round;
 	public float anchor = AQuery.ANCHOR_DYNAMIC;
+	
+	public Bitmap.Config config;
+	
+	//decode opaque images as RGB_565 if config is not set
+	public boolean autoConfig;
 
 	
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import com.androidquery.util.AQUtility;
+import com.androidquery.util.PredefinedBAOS;
+
+/**
+ * AQuery internal use only.
+ *
+ * Splits a top level JSON array into elements while the bytes are written, and hands pages of parsed elements to the callback.
+ * Bytes are passed through to the delegate stream (if any) unchanged.
+ *
+ * Only the element being read is kept as raw bytes, completed elements are parsed with JSONTokener and added to the result.
+ *
+ */
+
+public class JSONArrayStream extends OutputStream{
+
+	private AbstractAjaxCallback<?, ?> cb;
+	private OutputStream os;
+	private String encoding;
+	private int pageSize;
+
+	private JSONArray result = new JSONArray();
+	private JSONArray page = new JSONArray();
+	private PredefinedBAOS element = new PredefinedBAOS(256);
+
+	private boolean started;
+	private boolean complete;
+	private boolean invalid;
+	private boolean collecting;
+	private boolean string;
+	private boolean escape;
+	private int depth;
+
+	public JSONArrayStream(AbstractAjaxCallback<?, ?> cb, OutputStream os, String encoding, int pageSize){
+		this.cb = cb;
+		this.os = os;
+		this.encoding = encoding;
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException{
+
+		if(os != null){
+			os.write(b);
+		}
+
+		feed(b & 0xFF);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+
+		if(os != null){
+			os.write(b, off, len);
+		}
+
+		if(complete || invalid) return;
+
+		for(int i = off; i < off + len; i++){
+			feed(b[i] & 0xFF);
+		}
+
+	}
+
+	@Override
+	public void flush() throws IOException{
+		if(os != null){
+			os.flush();
+		}
+	}
+
+	private void feed(int c) throws IOException{
+
+		if(complete || invalid) return;
+
+		if(cb.isAborted()){
+			throw new IOException("Aborted");
+		}
+
+		if(!started){
+
+			if(c == '['){
+				started = true;
+				depth = 1;
+			}else if(!isSpace(c) && c != 0xEF && c != 0xBB && c != 0xBF){
+				//not an array, leave it to the regular transform
+				invalid = true;
+			}
+			return;
+		}
+
+		if(string){
+
+			element.write(c);
+
+			if(escape){
+				escape = false;
+			}else if(c == '\\'){
+				escape = true;
+			}else if(c == '"'){
+				string = false;
+			}
+			return;
+		}
+
+		switch(c){
+			case '"':
+				string = true;
+				collecting = true;
+				element.write(c);
+				break;
+			case '{':
+			case '[':
+				depth++;
+				collecting = true;
+				element.write(c);
+				break;
+			case '}':
+			case ']':
+				depth--;
+				if(depth == 0){
+					element();
+					deliver();
+					complete = true;
+				}else{
+					element.write(c);
+				}
+				break;
+			case ',':
+				if(depth == 1){
+					element();
+				}else{
+					element.write(c);
+				}
+				break;
+			default:
+				if(isSpace(c)){
+					if(depth > 1) element.write(c);
+				}else{
+					collecting = true;
+					element.write(c);
+				}
+
+		}
+
+	}
+
+	private static boolean isSpace(int c){
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private void element(){
+
+		if(!collecting) return;
+
+		try{
+			Object value = new JSONTokener(element.toString(encoding)).nextValue();
+			result.put(value);
+			page.put(value);
+		}catch(JSONException e){
+			AQUtility.debug(e);
+			invalid = true;
+		}catch(IOException e){
+			AQUtility.debug(e);
+			invalid = true;
+		}
+
+		element.reset();
+		collecting = false;
+
+		if(page.length() >= pageSize){
+			deliver();
+		}
+	}
+
+	private void deliver(){
+
+		if(invalid || page.length() == 0) return;
+
+		JSONArray items = page;
+		page = new JSONArray();
+
+		cb.deliverPage(items);
+	}
+
+	/**
+	 * The parsed array, or null if the content was not a complete JSON array.
+	 */
+	public JSONArray getResult(){
+
+		if(!complete || invalid) return null;
+		return result;
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.androidquery.util.AQUtility;
+import com.androidquery.util.Progress;
+
+/**
+ * AQuery internal use only.
+ *
+ * Copies every byte read from the response to the output stream, so a parser can consume the response while it is being stored.
+ *
+ */
+
+class TeeInputStream extends FilterInputStream{
+
+	private AbstractAjaxCallback<?, ?> cb;
+	private OutputStream os;
+	private Progress progress;
+
+	TeeInputStream(AbstractAjaxCallback<?, ?> cb, InputStream is, OutputStream os, int max, Progress progress){
+
+		super(is);
+
+		this.cb = cb;
+		this.os = os;
+		this.progress = progress;
+
+		if(progress != null){
+			progress.reset();
+			progress.setBytes(max);
+		}
+	}
+
+	@Override
+	public int read() throws IOException{
+
+		check();
+
+		int b = in.read();
+		if(b != -1){
+			os.write(b);
+			increment(1);
+		}
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+
+		check();
+
+		int read = in.read(b, off, len);
+		if(read > 0){
+			os.write(b, off, read);
+			increment(read);
+		}
+
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException{
+
+		//skipped bytes must still be copied
+		byte[] b = new byte[(int) Math.min(n, 1024 * 8)];
+		int read = read(b, 0, b.length);
+
+		return Math.max(read, 0);
+	}
+
+	@Override
+	public boolean markSupported(){
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit){
+	}
+
+	@Override
+	public void reset() throws IOException{
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Copy whatever the parser did not read.
+	 */
+	void drain() throws IOException{
+
+		check();
+
+		AQUtility.copy(in, os, 0, null);
+
+		if(progress != null){
+			progress.done();
+		}
+	}
+
+	private void check() throws IOException{
+
+		if(cb.isAborted()){
+			throw new IOException("Aborted");
+		}
+	}
+
+	private void increment(int delta){
+
+		if(progress != null){
+			progress.increment(delta);
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * AQuery internal use only.
+ *
+ * Writes the same bytes to two streams, such as the in memory response and the cache file.
+ *
+ */
+
+class TeeOutputStream extends OutputStream{
+
+	private OutputStream os;
+	private OutputStream os2;
+
+	TeeOutputStream(OutputStream os, OutputStream os2){
+		this.os = os;
+		this.os2 = os2;
+	}
+
+	@Override
+	public void write(int b) throws IOException{
+		os.write(b);
+		os2.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		os.write(b, off, len);
+		os2.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException{
+		os.flush();
+		os2.flush();
+	}
+
+	@Override
+	public void close() throws IOException{
+		try{
+			os.close();
+		}finally{
+			os2.close();
+		}
+	}
+
+}
@@ -16,7 +16,6 @@
 
 package com.androidquery.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -24,17 +23,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Application;
 import android.content.Context;
@@ -192,33 +202,125 @@ public class AQUtility {
 		
 		if(handler == null || callback == null) return null;
 		
-		Method method = null;
+		Class<?> hc = handler.getClass();
 		
-		try{   
-			if(cls == null) cls = new Class[0];
-			method = handler.getClass().getMethod(callback, cls);
-			return method.invoke(handler, params);			
-		}catch(NoSuchMethodException e){
-			//AQUtility.debug(e.getMessage());
+		if(cls == null) cls = NO_SIG;
+		Method method = getMethod(hc, callback, cls);
+		if(method != null){
+			return method.invoke(handler, params);
+		}
+		
+		if(fallback){
+			
+			if(cls2 == null){
+				method = getMethod(hc, callback, NO_SIG);
+				if(method != null){
+					return method.invoke(handler);
+				}
+			}else{
+				method = getMethod(hc, callback, cls2);
+				if(method != null){
+					return method.invoke(handler, params);
+				}
+			}
+			
+		}
+		
+		return null;
+		
+	}
+	
+	private static final Class<?>[] NO_SIG = new Class[0];
+	private static Map<MethodKey, SoftReference<Method>> methods = new ConcurrentHashMap<MethodKey, SoftReference<Method>>();
+	private static Map<Class<?>, Set<MethodKey>> misses = new WeakHashMap<Class<?>, Set<MethodKey>>();
+	
+	//resolve a public method once per (class, name, signature) and remember misses, so callbacks don't pay for NoSuchMethodException every time
+	//keys hold class names and methods are soft referenced, misses are kept per class weakly, so the cache never keeps a class or its loader alive
+	private static Method getMethod(Class<?> hc, String name, Class<?>[] sig){
+		
+		MethodKey key = new MethodKey(hc, name, sig);
+		
+		//a class of the same name from another loader has its own misses
+		synchronized(misses){
+			Set<MethodKey> missed = misses.get(hc);
+			if(missed != null && missed.contains(key)) return null;
+		}
+		
+		SoftReference<Method> cached = methods.get(key);
+		
+		if(cached != null){
+			
+			Method method = cached.get();
+			
+			//a class of the same name from another loader is resolved again
+			if(method != null && method.getDeclaringClass().isAssignableFrom(hc)){
+				return method;
+			}
 		}
 		
+		Method method = null;
 		
 		try{
-			if(fallback){
+			method = hc.getMethod(name, sig);
+			method.setAccessible(true);
+		}catch(NoSuchMethodException e){
+		}catch(SecurityException e){
+			AQUtility.debug(e);
+		}
+		
+		if(method == null){
 			
-				if(cls2 == null){
-					method = handler.getClass().getMethod(callback);	
-					return method.invoke(handler);
-				}else{
-					method = handler.getClass().getMethod(callback, cls2);
-					return method.invoke(handler, params);	
+			synchronized(misses){
+				
+				Set<MethodKey> missed = misses.get(hc);
+				
+				if(missed == null){
+					missed = new HashSet<MethodKey>();
+					misses.put(hc, missed);
 				}
 				
+				missed.add(key);
 			}
-		}catch(NoSuchMethodException e){
+			
+		}else{
+			methods.put(key, new SoftReference<Method>(method));
 		}
 		
-		return null;
+		return method;
+		
+	}
+	
+	private static class MethodKey{
+		
+		private String name;
+		private String[] sig;
+		private int hash;
+		
+		private MethodKey(Class<?> hc, String name, Class<?>[] sig){
+			
+			this.name = hc.getName() + "#" + name;
+			this.sig = new String[sig == null ? 0 : sig.length];
+			
+			for(int i = 0; i < this.sig.length; i++){
+				this.sig[i] = sig[i] == null ? null : sig[i].getName();
+			}
+			
+			this.hash = this.name.hashCode() * 31 + Arrays.hashCode(this.sig);
+		}
+		
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o){
+			
+			if(!(o instanceof MethodKey)) return false;
+			
+			MethodKey other = (MethodKey) o;
+			return hash == other.hash && name.equals(other.name) && Arrays.equals(sig, other.sig);
+		}
 		
 	}
 	
@@ -299,7 +401,7 @@ public class AQUtility {
 	
 	public static void postAsync(final Object handler, final String method, final Class<?>[] sig, final Object... params){
 		
-		ExecutorService exe = getFileStoreExecutor();
+		ExecutorService exe = getStoreExecutor(handler);
 			
 		exe.execute(new Runnable() {
 			
@@ -356,7 +458,26 @@ public class AQUtility {
 
 	}
 	
-    private static final int IO_BUFFER_SIZE = 1024 * 4;
+    private static final int IO_BUFFER_SIZE = 1024 * 8;
+    private static final int MIN_BUFFER_SIZE = 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 32;
+    
+    //copy loops run on a handful of worker threads, so one buffer per thread avoids an allocation per response
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>(){
+    	
+    	@Override
+    	protected byte[] initialValue(){
+    		return new byte[MAX_BUFFER_SIZE];
+    	}
+    };
+    
+    private static int getBufferSize(int max){
+    	
+    	if(max <= 0) return IO_BUFFER_SIZE;
+    	
+    	return Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, max));
+    }
+    
     public static void copy(InputStream in, OutputStream out) throws IOException {
     	//copy(in, out, 0, null, null);
     	copy(in, out, 0, null);
@@ -371,9 +492,10 @@ public class AQUtility {
     		progress.setBytes(max);
     	}
     	
-    	byte[] b = new byte[IO_BUFFER_SIZE];
+    	byte[] b = buffers.get();
+    	int size = getBufferSize(max);
         int read;
-        while((read = in.read(b)) != -1){
+        while((read = in.read(b, 0, size)) != -1){
             out.write(b, 0, read);
             if(progress != null){
             	progress.increment(read);
@@ -387,13 +509,24 @@ public class AQUtility {
     }
     
     public static byte[] toBytes(InputStream is){
+    	return toBytes(is, 0);
+    }
+    
+    /**
+     * Read the stream fully and close it. 
+     *
+     * @param is the input stream
+     * @param size the expected length if known, 0 otherwise
+     * @return the bytes, null if read failed
+     */
+    public static byte[] toBytes(InputStream is, int size){
     	
     	byte[] result = null;
     	
-    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    	PredefinedBAOS baos = new PredefinedBAOS(size > 0 ? size : -1);
     	
     	try {
-			copy(is, baos);			
+			copy(is, baos, size, null);			
 			result = baos.toByteArray();
 		} catch (IOException e){
 			AQUtility.report(e);
@@ -406,27 +539,67 @@ public class AQUtility {
     	
     }
 
+    /**
+     * Write the data to a temp file and rename it to the file, so a crash never leaves a truncated file behind.
+     *
+     * @param file the file
+     * @param data the data
+     */
     public static void write(File file, byte[] data){
     	
+    	File temp = null;
+    	FileOutputStream fos = null;
+    	
 	    try{
-	    	if(!file.exists()){
-	    		try{
-	    			file.createNewFile();
-	    		}catch(Exception e){
-	    			AQUtility.debug("file create fail", file);
-	    			AQUtility.report(e);
-	    		}
-	    	}
+	    	temp = createTempFile(file);
 	    	
-	    	FileOutputStream fos = new FileOutputStream(file);
+	    	fos = new FileOutputStream(temp);
 	    	fos.write(data);
+	    	sync(fos);
 	    	fos.close();
+	    	fos = null;
+	    	
+	    	if(commit(temp, file)){
+	    		temp = null;
+	    	}
     	}catch(Exception e){
+    		AQUtility.debug("file write fail", file);
     		AQUtility.report(e);
+    	}finally{
+    		close(fos);
+    		if(temp != null){
+    			temp.delete();
+    		}
     	}
     	
     }
     
+    private static boolean SYNC = false;
+    
+    /**
+     * Flush cache writes to the disk before they are renamed to the final file. 
+     * Protects against corrupted files on power loss at the cost of slower writes.
+     * 
+     * Default is false.
+     *
+     * @param sync fsync writes
+     */
+    public static void setFileSync(boolean sync){
+    	SYNC = sync;
+    }
+    
+    /**
+     * Flush the file to the disk if setFileSync(true).
+     *
+     * @param fos the file output stream, can be null
+     */
+    public static void sync(FileOutputStream fos) throws IOException{
+    	
+    	if(SYNC && fos != null){
+    		fos.getFD().sync();
+    	}
+    }
+    
     public static void close(Closeable c){
     	try{
     		if(c != null){
@@ -437,24 +610,156 @@ public class AQUtility {
     }
    
 	
-	private static ScheduledExecutorService storeExe;
-	private static ScheduledExecutorService getFileStoreExecutor(){
+	private static int STORE_THREADS = 2;
+	private static long MAX_PENDING_BYTES = 1024 * 1024 * 4;
+	
+	private static ScheduledExecutorService[] storeExes;
+	private static ScheduledExecutorService cleanExe;
+	private static final AtomicLong pendingBytes = new AtomicLong();
+	
+	/**
+	 * Set the number of threads that write cache files. Writes to the same file always run on the same thread in order.
+	 * Must be called before the first write.
+	 * 
+	 * Default is 2.
+	 *
+	 * @param threads number of threads
+	 */
+	public static void setStoreThreads(int threads){
+		STORE_THREADS = Math.max(1, threads);
+	}
+	
+	/**
+	 * Set the max bytes queued for cache writes. Beyond the limit the calling thread waits for its write,
+	 * or the write is dropped on the UI thread.
+	 * 
+	 * Default is 4MB.
+	 *
+	 * @param bytes max queued bytes
+	 */
+	public static void setMaxPendingBytes(long bytes){
+		MAX_PENDING_BYTES = bytes;
+	}
+	
+	private static ThreadFactory newThreadFactory(final String name, final int priority){
+		
+		return new ThreadFactory(){
+			
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, name);
+				t.setPriority(priority);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	//writes are partitioned by key so the writes of the same file keep their order
+	private static synchronized ScheduledExecutorService getStoreExecutor(Object key){
 		
-		if(storeExe == null){
-			storeExe = Executors.newSingleThreadScheduledExecutor();
+		if(storeExes == null){
+			storeExes = new ScheduledExecutorService[STORE_THREADS];
+			for(int i = 0; i < storeExes.length; i++){
+				storeExes[i] = Executors.newSingleThreadScheduledExecutor(newThreadFactory("aq-store-" + i, Thread.NORM_PRIORITY - 1));
+			}
 		}
 		
-		return storeExe;
+		int hash = key == null ? 0 : key.hashCode();
+		int index = (hash & Integer.MAX_VALUE) % storeExes.length;
+		
+		return storeExes[index];
+	}
+	
+	//cleanup runs on its own lane so it never holds back pending writes
+	private static synchronized ScheduledExecutorService getCleanExecutor(){
+		
+		if(cleanExe == null){
+			cleanExe = Executors.newSingleThreadScheduledExecutor(newThreadFactory("aq-clean", Thread.MIN_PRIORITY));
+		}
+		
+		return cleanExe;
 	}
 	
 	
+	static void schedule(Runnable task, Object key, long delay){
+		getStoreExecutor(key).schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+	
 	public static void storeAsync(File file, byte[] data, long delay){
 				
-		ScheduledExecutorService exe = getFileStoreExecutor();
+		final Common task = new Common().method(Common.STORE_FILE, file, data);
+		final int size = data == null ? 0 : data.length;
+		
+		boolean full = pendingBytes.addAndGet(size) > MAX_PENDING_BYTES && size > 0;
+		
+		if(full && isUIThread()){
+			pendingBytes.addAndGet(-size);
+			AQUtility.debug("store queue full, dropped", file);
+			return;
+		}
+		
+		ScheduledExecutorService exe = getStoreExecutor(file);
+		
+		ScheduledFuture<?> future = exe.schedule(new Runnable(){
+			
+			@Override
+			public void run(){
+				try{
+					task.run();
+				}finally{
+					pendingBytes.addAndGet(-size);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		
+		//the write still goes through the lane of the file to keep its order, the caller waits for it instead
+		if(full){
+			try{
+				future.get();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}catch(ExecutionException e){
+				AQUtility.report(e.getCause());
+			}
+		}
+	
+	}
+	
+	/**
+	 * Rename a completed temp file to the file on the store executor. The data is written instead if the rename fails.
+	 *
+	 * @param temp the temp file
+	 * @param file the file
+	 * @param data the same content as the temp file
+	 */
+	public static void commitAsync(final File temp, final File file, final byte[] data){
 		
-		Common task = new Common().method(Common.STORE_FILE, file, data);
-		exe.schedule(task, delay, TimeUnit.MILLISECONDS);
+		schedule(new Runnable(){
+			
+			@Override
+			public void run(){
+				if(!commit(temp, file) && data != null){
+					write(file, data);
+				}
+			}
+		}, file, 0);
+	}
 	
+	/**
+	 * Delete a file on the store executor.
+	 *
+	 * @param file the file
+	 */
+	public static void deleteAsync(final File file){
+		
+		schedule(new Runnable(){
+			
+			@Override
+			public void run(){
+				file.delete();
+			}
+		}, file, 0);
 	}
 	
 	private static File cacheDir;
@@ -529,9 +834,42 @@ public class AQUtility {
 		if(file == null || !file.exists()){
 			return null;
 		}
+		
+		//an empty cache file is left by an interrupted write of older versions
+		if(file.length() == 0 && !url.startsWith(File.separator)){
+			return null;
+		}
+		
 		return file;
 	}
 	
+	/**
+	 * Gets the cache file of the url. If packing is enabled, an entry in the pack file is moved out to its own file.
+	 * On the UI thread the entry is moved in background, and the file is returned by a later call.
+	 *
+	 * @param dir the cache directory
+	 * @param url the url
+	 * @param pack packing is enabled
+	 * @return the file, or null if not cached
+	 */
+	public static File getExistedCacheFile(File dir, String url, boolean pack){
+		
+		File file = getExistedCacheByUrl(dir, url);
+		if(file != null || !pack || url == null || url.startsWith(File.separator)) return file;
+		
+		file = getCacheFile(dir, url);
+		String key = file.getName();
+		
+		PackStore store = PackStore.get(dir);
+		
+		if(isUIThread()){
+			store.extractAsync(key, file);
+			return null;
+		}
+		
+		return store.extract(key, file) ? file : null;
+	}
+	
 	public static File getExistedCacheByUrlSetAccess(File dir, String url){
 		File file = getExistedCacheByUrl(dir, url);
 		if(file != null){
@@ -540,6 +878,53 @@ public class AQUtility {
 		return file;
 	}
 	
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+	
+	//a temp file untouched for this long is left by a crash or a killed process
+	private static final long TEMP_AGE = 60 * 60 * 1000;
+	
+	/**
+	 * Create a temp file in the same directory as the target, so it can be renamed to the target once complete.
+	 *
+	 * @param target the target file
+	 * @return the temp file
+	 */
+	public static File createTempFile(File target) throws IOException{
+		
+		File dir = target.getParentFile();
+		dir.mkdirs();
+		
+		//createTempFile requires a prefix of at least 3 characters
+		String prefix = target.getName();
+		while(prefix.length() < 3){
+			prefix += "_";
+		}
+		
+		return File.createTempFile(prefix, TEMP_SUFFIX, dir);
+	}
+	
+	/**
+	 * Rename a completed temp file to the target, replacing the existing target. The temp file is deleted if the rename fails.
+	 *
+	 * @param temp the temp file
+	 * @param target the target file
+	 * @return true if renamed
+	 */
+	public static boolean commit(File temp, File target){
+		
+		if(temp.renameTo(target)) return true;
+		
+		//some file systems do not replace an existing file
+		target.delete();
+		if(temp.renameTo(target)) return true;
+		
+		AQUtility.debug("rename failed", target);
+		temp.delete();
+		
+		return false;
+	}
+	
 	private static void lastAccess(File file){
 		long now = System.currentTimeMillis();		
 		file.setLastModified(now);
@@ -573,7 +958,7 @@ public class AQUtility {
 			
 			Common task = new Common().method(Common.CLEAN_CACHE, cacheDir, triggerSize, targetSize);
 			
-			ScheduledExecutorService exe = getFileStoreExecutor();	
+			ScheduledExecutorService exe = getCleanExecutor();	
 			
 			exe.schedule(task, 0, TimeUnit.MILLISECONDS);
 			
@@ -590,6 +975,8 @@ public class AQUtility {
 			
 			if(files == null) return;
 			
+			files = purge(files);
+			
 			Arrays.sort(files, new Common());
 			
 			if(testCleanNeeded(files, triggerSize)){
@@ -629,16 +1016,55 @@ public class AQUtility {
 		return false;
 	}
 	
+	//delete orphaned temp files and snapshots of deleted cache files, and compact the pack file
+	private static File[] purge(File[] files){
+		
+		List<File> result = new ArrayList<File>(files.length);
+		long now = System.currentTimeMillis();
+		int deletes = 0;
+		
+		for(File f: files){
+			
+			String name = f.getName();
+			
+			if(name.endsWith(TEMP_SUFFIX) && now - f.lastModified() > TEMP_AGE){
+				f.delete();
+				deletes++;
+			}else if(name.endsWith(SNAPSHOT_SUFFIX) && !new File(f.getParentFile(), name.substring(0, name.length() - SNAPSHOT_SUFFIX.length())).exists()){
+				f.delete();
+				deletes++;
+			}else{
+				if(PackStore.isPackFile(f)){
+					PackStore.get(f.getParentFile()).cleanup();
+				}
+				result.add(f);
+			}
+		}
+		
+		if(deletes > 0){
+			AQUtility.debug("purged", deletes);
+		}
+		
+		return result.toArray(new File[result.size()]);
+	}
+	
 	private static void cleanCache(File[] files, long maxSize){
 		
 		long total = 0;
 		int deletes = 0;
 		
+		//the pack evicts its own oldest entries, up to half of the budget, its live data counts first
+		for(File f: files){
+			if(PackStore.isPackFile(f)){
+				total += PackStore.get(f.getParentFile()).trim(maxSize / 2);
+			}
+		}
+		
 		for(int i = 0; i < files.length; i++){
 			
 			File f = files[i];
 			
-			if(f.isFile()){
+			if(f.isFile() && !PackStore.isPackFile(f)){
 			
 				total += f.length();
 				
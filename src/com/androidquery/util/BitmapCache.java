@@ -89,21 +89,34 @@ public class BitmapCache extends LinkedHashMap<String, Bitmap>{
 		pixels = 0;
 	}
 	
+	//counted as ARGB_8888 pixels, a RGB_565 image counts as half
 	private int pixels(Bitmap bm){
 		if(bm == null) return 0;
-		return bm.getWidth() * bm.getHeight();
+		return bm.getRowBytes() * bm.getHeight() / 4;
+	}
+	
+	/**
+	 * Called when an entry is removed to keep the cache within its limits.
+	 *
+	 * @param key the key
+	 */
+	protected void evicted(String key){
 	}
 	
 	private void shrink(){
 		
 		if(pixels > maxTotalPixels){
 			
-			Iterator<String> keys = keySet().iterator();
+			Iterator<Map.Entry<String, Bitmap>> entries = entrySet().iterator();
 			
-			while(keys.hasNext()){
+			while(entries.hasNext()){
 				
-				keys.next();
-				keys.remove();
+				Map.Entry<String, Bitmap> entry = entries.next();
+				String key = entry.getKey();
+				
+				entries.remove();
+				pixels -= pixels(entry.getValue());
+				evicted(key);
 				
 				if(pixels <= maxTotalPixels){
 					break;
@@ -128,8 +141,9 @@ public class BitmapCache extends LinkedHashMap<String, Bitmap>{
 				AQUtility.debug("evict by count", maxCount);
 			}
 			*/
-			remove(eldest.getKey());
-		
+			String key = eldest.getKey();
+			remove(key);
+			evicted(key);
 			
 		}
 		
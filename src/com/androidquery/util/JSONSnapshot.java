@@ -0,0 +1,318 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * AQuery internal use only.
+ *
+ * Binary snapshot of a parsed JSON tree, so a cached response can be rebuilt without tokenizing the text again.
+ *
+ * The snapshot starts with the length and time of the source file it was made from, followed by a table of
+ * every distinct key and string value and then the tree as tag/value pairs. Strings are referenced by their
+ * index in the table, so repeated keys are stored and decoded once.
+ *
+ */
+
+public class JSONSnapshot {
+
+	private static final int MAGIC = 0x41514a31;
+
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int INT = 3;
+	private static final int LONG = 4;
+	private static final int DOUBLE = 5;
+	private static final int STRING = 6;
+	private static final int OBJECT = 7;
+	private static final int ARRAY = 8;
+
+	private PredefinedBAOS out;
+	private Map<String, Integer> table;
+	private List<String> strings;
+
+	private byte[] in;
+	private int pos;
+	private String[] names;
+
+	private JSONSnapshot(){
+	}
+
+	/**
+	 * Encode a JSON tree.
+	 *
+	 * @param json the JSONObject or JSONArray
+	 * @param length the length of the source file
+	 * @param time the last modified time of the source file
+	 * @return the snapshot, or null if the tree holds unsupported values
+	 */
+	public static byte[] encode(Object json, long length, long time){
+
+		try{
+			return new JSONSnapshot().write(json, length, time);
+		}catch(Exception e){
+			AQUtility.debug(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Decode a snapshot.
+	 *
+	 * @param data the snapshot
+	 * @param length the length of the source file
+	 * @param time the last modified time of the source file
+	 * @return the JSONObject or JSONArray, or null if the snapshot is corrupted or made from a different source file
+	 */
+	public static Object decode(byte[] data, long length, long time){
+
+		try{
+			return new JSONSnapshot().read(data, length, time);
+		}catch(Exception e){
+			AQUtility.debug(e);
+			return null;
+		}
+	}
+
+	private byte[] write(Object json, long length, long time) throws UnsupportedEncodingException{
+
+		out = new PredefinedBAOS(1024 * 4);
+		table = new HashMap<String, Integer>();
+		strings = new ArrayList<String>();
+
+		writeValue(json);
+		byte[] body = out.toByteArray();
+
+		out = new PredefinedBAOS(body.length + strings.size() * 16 + 32);
+
+		writeInt(MAGIC);
+		writeLong(length);
+		writeLong(time);
+
+		writeVar(strings.size());
+		for(String s: strings){
+			byte[] b = s.getBytes("UTF-8");
+			writeVar(b.length);
+			out.write(b, 0, b.length);
+		}
+
+		out.write(body, 0, body.length);
+
+		return out.toByteArray();
+	}
+
+	private void writeValue(Object value){
+
+		if(value == null || value == JSONObject.NULL){
+			out.write(NULL);
+		}else if(value instanceof Boolean){
+			out.write(((Boolean) value) ? TRUE : FALSE);
+		}else if(value instanceof Integer || value instanceof Short || value instanceof Byte){
+			out.write(INT);
+			writeInt(((Number) value).intValue());
+		}else if(value instanceof Long){
+			out.write(LONG);
+			writeLong((Long) value);
+		}else if(value instanceof Number){
+			out.write(DOUBLE);
+			writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+		}else if(value instanceof String){
+			out.write(STRING);
+			writeString((String) value);
+		}else if(value instanceof JSONObject){
+
+			JSONObject jo = (JSONObject) value;
+
+			out.write(OBJECT);
+			writeVar(jo.length());
+
+			Iterator<?> keys = jo.keys();
+			while(keys.hasNext()){
+				String key = (String) keys.next();
+				writeString(key);
+				writeValue(jo.opt(key));
+			}
+
+		}else if(value instanceof JSONArray){
+
+			JSONArray ja = (JSONArray) value;
+			int size = ja.length();
+
+			out.write(ARRAY);
+			writeVar(size);
+
+			for(int i = 0; i < size; i++){
+				writeValue(ja.opt(i));
+			}
+
+		}else{
+			throw new IllegalArgumentException("unsupported json value:" + value.getClass());
+		}
+
+	}
+
+	private void writeString(String s){
+
+		Integer index = table.get(s);
+
+		if(index == null){
+			index = strings.size();
+			table.put(s, index);
+			strings.add(s);
+		}
+
+		writeVar(index);
+	}
+
+	private void writeVar(int v){
+
+		while((v & ~0x7f) != 0){
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+
+		out.write(v);
+	}
+
+	private void writeInt(int v){
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private void writeLong(long v){
+		writeInt((int) (v >>> 32));
+		writeInt((int) v);
+	}
+
+	private Object read(byte[] data, long length, long time) throws UnsupportedEncodingException, JSONException{
+
+		in = data;
+		pos = 0;
+
+		if(readInt() != MAGIC) return null;
+		if(readLong() != length || readLong() != time) return null;
+
+		int count = readVar();
+		names = new String[count];
+
+		for(int i = 0; i < count; i++){
+			int size = readVar();
+			names[i] = new String(in, pos, size, "UTF-8");
+			pos += size;
+		}
+
+		Object result = readValue();
+
+		if(pos != in.length) return null;
+
+		return result;
+	}
+
+	private Object readValue() throws JSONException{
+
+		int tag = in[pos++];
+
+		switch(tag){
+			case NULL:
+				return JSONObject.NULL;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return readInt();
+			case LONG:
+				return readLong();
+			case DOUBLE:
+				return Double.longBitsToDouble(readLong());
+			case STRING:
+				return names[readVar()];
+			case OBJECT:{
+
+				int size = readVar();
+				JSONObject jo = new JSONObject();
+
+				for(int i = 0; i < size; i++){
+					String key = names[readVar()];
+					jo.put(key, readValue());
+				}
+
+				return jo;
+			}
+			case ARRAY:{
+
+				int size = readVar();
+				JSONArray ja = new JSONArray();
+
+				for(int i = 0; i < size; i++){
+					ja.put(readValue());
+				}
+
+				return ja;
+			}
+			default:
+				throw new JSONException("bad snapshot tag:" + tag);
+		}
+
+	}
+
+	private int readVar(){
+
+		int result = 0;
+		int shift = 0;
+
+		while(true){
+
+			int b = in[pos++];
+			result |= (b & 0x7f) << shift;
+
+			if((b & 0x80) == 0) return result;
+
+			shift += 7;
+		}
+	}
+
+	private int readInt(){
+
+		int result = ((in[pos] & 0xff) << 24) | ((in[pos + 1] & 0xff) << 16) | ((in[pos + 2] & 0xff) << 8) | (in[pos + 3] & 0xff);
+		pos += 4;
+
+		return result;
+	}
+
+	private long readLong(){
+
+		long high = readInt();
+		long low = readInt() & 0xffffffffL;
+
+		return (high << 32) | low;
+	}
+
+}
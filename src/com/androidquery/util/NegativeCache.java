@@ -0,0 +1,257 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.androidquery.callback.AjaxStatus;
+
+/**
+ * AQuery internal use only.
+ *
+ * Remembers failed urls for a while, so a broken url is not requested again on every access.
+ *
+ * The time a failure is remembered depends on the status code. An exact code is looked up first, such as 404,
+ * then the status class, such as 500 for all 5xx codes. Network errors back off exponentially per url.
+ * Content that fails to transform, such as a 200 response that is not a valid image, is remembered as AjaxStatus.TRANSFORM_ERROR.
+ * A time of 0 means the code is not remembered.
+ *
+ */
+
+public class NegativeCache {
+
+	private static final int MAX_ENTRIES = 500;
+	private static final String HOST = "host:";
+
+	private Map<Integer, Long> ttls = new HashMap<Integer, Long>();
+	private long maxBackoff = 5 * 60 * 1000;
+	private boolean host;
+
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75F, true){
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static class Entry{
+
+		int code;
+		int failures;
+		long expires;
+	}
+
+	public NegativeCache(){
+
+		ttls.put(404, 10 * 60 * 1000L);
+		ttls.put(410, 10 * 60 * 1000L);
+		ttls.put(400, 60 * 1000L);
+		ttls.put(500, 10 * 1000L);
+		ttls.put(429, 10 * 1000L);
+
+		//auth and timeouts are not a property of the url
+		ttls.put(401, 0L);
+		ttls.put(403, 0L);
+		ttls.put(407, 0L);
+		ttls.put(408, 0L);
+
+		//content that cannot be transformed, such as a broken image
+		ttls.put(AjaxStatus.TRANSFORM_ERROR, 60 * 1000L);
+
+		//first backoff
+		ttls.put(AjaxStatus.NETWORK_ERROR, 2 * 1000L);
+	}
+
+	/**
+	 * Sets the time a failure is remembered.
+	 *
+	 * @param code the status code, a status class such as 400 or 500, or AjaxStatus.NETWORK_ERROR for the first backoff
+	 * @param ms the time in ms, 0 to not remember the code
+	 */
+	public synchronized void setTTL(int code, long ms){
+		ttls.put(code, ms);
+	}
+
+	/**
+	 * Sets the max backoff of network errors.
+	 *
+	 * @param ms the time in ms
+	 */
+	public synchronized void setMaxBackoff(long ms){
+		maxBackoff = ms;
+	}
+
+	/**
+	 * Remember network errors per host as well, so all urls of an unreachable host back off together.
+	 *
+	 * Default is false.
+	 *
+	 * @param host per host
+	 */
+	public synchronized void setHost(boolean host){
+		this.host = host;
+	}
+
+	/**
+	 * Gets the remembered failure of a url.
+	 *
+	 * @param url the url
+	 * @return the status code, or 0 if the url should be requested
+	 */
+	public synchronized int get(String url){
+
+		if(url == null) return 0;
+
+		long now = System.currentTimeMillis();
+
+		int code = get(url, now);
+
+		if(code == 0 && host){
+			String h = getHost(url);
+			if(h != null){
+				code = get(HOST + h, now);
+			}
+		}
+
+		return code;
+	}
+
+	private int get(String key, long now){
+
+		Entry entry = entries.get(key);
+
+		if(entry == null || entry.expires <= now) return 0;
+
+		return entry.code;
+	}
+
+	/**
+	 * Remember a failure.
+	 *
+	 * @param url the url
+	 * @param code the status code
+	 */
+	public synchronized void put(String url, int code){
+
+		if(url == null) return;
+
+		put(url, code, System.currentTimeMillis());
+
+		if(host && code == AjaxStatus.NETWORK_ERROR){
+			String h = getHost(url);
+			if(h != null){
+				put(HOST + h, code, System.currentTimeMillis());
+			}
+		}
+	}
+
+	private void put(String key, int code, long now){
+
+		Entry entry = entries.get(key);
+
+		//failures are counted until a success, an expired entry keeps the count for the backoff
+		if(entry == null || entry.code != code){
+			entry = new Entry();
+			entry.code = code;
+			entries.put(key, entry);
+		}
+
+		entry.failures++;
+
+		long ttl = getTTL(code, entry.failures);
+
+		if(ttl <= 0){
+			entries.remove(key);
+			return;
+		}
+
+		entry.expires = now + ttl;
+	}
+
+	private long getTTL(int code, int failures){
+
+		Long ttl = ttls.get(code);
+
+		if(ttl == null && code > 0){
+			ttl = ttls.get(code / 100 * 100);
+		}
+
+		if(ttl == null) return 0;
+
+		if(code == AjaxStatus.NETWORK_ERROR){
+
+			long result = ttl;
+			for(int i = 1; i < failures && result < maxBackoff; i++){
+				result *= 2;
+			}
+
+			return Math.min(result, maxBackoff);
+		}
+
+		return ttl;
+	}
+
+	/**
+	 * Forget the failures of a url after a success.
+	 *
+	 * @param url the url
+	 */
+	public synchronized void remove(String url){
+
+		if(url == null) return;
+
+		entries.remove(url);
+
+		if(host){
+			String h = getHost(url);
+			if(h != null){
+				entries.remove(HOST + h);
+			}
+		}
+	}
+
+	/**
+	 * Forget all failures.
+	 */
+	public synchronized void clear(){
+		entries.clear();
+	}
+
+	private static String getHost(String url){
+
+		int start = url.indexOf("://");
+		if(start == -1) return null;
+		start += 3;
+
+		int end = start;
+		while(end < url.length()){
+			char c = url.charAt(end);
+			if(c == '/' || c == '?' || c == '#') break;
+			end++;
+		}
+
+		if(end == start) return null;
+
+		return url.substring(start, end);
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.graphics.Bitmap;
+
+/**
+ * AQuery internal use only.
+ *
+ * LRU memory cache of ajax results. Each result type has its own budget in estimated bytes,
+ * so large strings cannot push out the parsed JSON and the other way around.
+ *
+ */
+
+public class ObjectCache {
+
+	/**
+	 * Estimates the memory used by a cached result.
+	 */
+	public interface Estimator{
+
+		/**
+		 * @param value the cached object
+		 * @return estimated size in bytes, or a negative value if the object should not be cached
+		 */
+		public long sizeOf(Object value);
+	}
+
+	private static final long DEFAULT_BUDGET = 1024 * 1024;
+
+	private Map<Class<?>, Long> budgets = new HashMap<Class<?>, Long>();
+	private Map<Class<?>, Bucket> buckets = new HashMap<Class<?>, Bucket>();
+	private long defaultBudget = DEFAULT_BUDGET;
+	private Estimator estimator;
+
+	private static class Item{
+
+		Object value;
+		long size;
+		long time;
+
+		Item(Object value, long size){
+			this.value = value;
+			this.size = size;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+	private static class Bucket extends LinkedHashMap<String, Item>{
+
+		private static final long serialVersionUID = 1L;
+
+		long bytes;
+		long budget;
+
+		Bucket(long budget){
+			super(8, 0.75F, true);
+			this.budget = budget;
+		}
+
+		void add(String key, Item item){
+
+			Item old = put(key, item);
+			if(old != null){
+				bytes -= old.size;
+			}
+			bytes += item.size;
+
+			Iterator<Item> it = values().iterator();
+			while(bytes > budget && it.hasNext()){
+				Item eldest = it.next();
+				it.remove();
+				bytes -= eldest.size;
+			}
+		}
+
+		Item delete(String key){
+
+			Item old = remove(key);
+			if(old != null){
+				bytes -= old.size;
+			}
+			return old;
+		}
+	}
+
+	/**
+	 * Sets the budget of a result type. Takes effect for new entries.
+	 *
+	 * @param type the result type, or null for the default budget of all types
+	 * @param bytes the budget in estimated bytes
+	 */
+	public synchronized void setBudget(Class<?> type, long bytes){
+
+		if(type == null){
+			defaultBudget = bytes;
+			for(Map.Entry<Class<?>, Bucket> e: buckets.entrySet()){
+				if(!budgets.containsKey(e.getKey())){
+					e.getValue().budget = bytes;
+				}
+			}
+		}else{
+			budgets.put(type, bytes);
+			Bucket bucket = buckets.get(type);
+			if(bucket != null){
+				bucket.budget = bytes;
+			}
+		}
+	}
+
+	/**
+	 * Sets the size estimator, null for the default estimator.
+	 *
+	 * @param estimator the estimator
+	 */
+	public synchronized void setEstimator(Estimator estimator){
+		this.estimator = estimator;
+	}
+
+	/**
+	 * Gets a cached result.
+	 *
+	 * @param type the result type
+	 * @param key the key
+	 * @param expire max age in ms, 0 for no expiry
+	 * @return the cached result, or null
+	 */
+	public synchronized Object get(Class<?> type, String key, long expire){
+
+		Bucket bucket = buckets.get(type);
+		if(bucket == null) return null;
+
+		Item item = bucket.get(key);
+		if(item == null) return null;
+
+		if(expire > 0 && System.currentTimeMillis() - item.time > expire){
+			bucket.delete(key);
+			return null;
+		}
+
+		return item.value;
+	}
+
+	/**
+	 * Cache a result.
+	 *
+	 * @param type the result type
+	 * @param key the key
+	 * @param value the result
+	 */
+	public void put(Class<?> type, String key, Object value){
+
+		if(value == null) return;
+
+		Estimator est;
+		synchronized(this){
+			est = estimator;
+		}
+
+		//estimated outside the lock, walking a large JSON tree takes a while
+		long size = est != null ? est.sizeOf(value) : estimate(value);
+		if(size < 0) return;
+
+		synchronized(this){
+
+			Bucket bucket = buckets.get(type);
+
+			if(bucket == null){
+				Long budget = budgets.get(type);
+				bucket = new Bucket(budget != null ? budget : defaultBudget);
+				buckets.put(type, bucket);
+			}
+
+			if(size > bucket.budget){
+				bucket.delete(key);
+				return;
+			}
+
+			bucket.add(key, new Item(value, size));
+		}
+	}
+
+	/**
+	 * Remove the cached results of a key.
+	 *
+	 * @param key the key
+	 */
+	public synchronized void remove(String key){
+
+		for(Bucket bucket: buckets.values()){
+			bucket.delete(key);
+		}
+	}
+
+	/**
+	 * Remove all cached results.
+	 */
+	public synchronized void clear(){
+		buckets.clear();
+	}
+
+	/**
+	 * The default estimator. Other types, such as transformer results, are counted as 1KB.
+	 *
+	 * @param value the value
+	 * @return estimated bytes
+	 */
+	public static long estimate(Object value){
+
+		if(value == null) return 0;
+
+		if(value instanceof String){
+			return 40 + ((String) value).length() * 2;
+		}
+
+		if(value instanceof byte[]){
+			return 16 + ((byte[]) value).length;
+		}
+
+		if(value instanceof Bitmap){
+			Bitmap bm = (Bitmap) value;
+			return bm.getRowBytes() * bm.getHeight();
+		}
+
+		if(value instanceof JSONObject || value instanceof JSONArray){
+			return estimateJson(value);
+		}
+
+		if(value instanceof Number || value instanceof Boolean){
+			return 16;
+		}
+
+		//transformer results should be estimated with a custom estimator
+		return 1024;
+	}
+
+	private static long estimateJson(Object value){
+
+		if(value instanceof JSONObject){
+
+			JSONObject jo = (JSONObject) value;
+
+			//hash map entry per key
+			long size = 64 + jo.length() * 32;
+
+			Iterator<?> keys = jo.keys();
+			while(keys.hasNext()){
+				String key = (String) keys.next();
+				size += 40 + key.length() * 2;
+				size += estimateJson(jo.opt(key));
+			}
+
+			return size;
+		}
+
+		if(value instanceof JSONArray){
+
+			JSONArray ja = (JSONArray) value;
+			long size = 48 + ja.length() * 4;
+
+			for(int i = 0; i < ja.length(); i++){
+				size += estimateJson(ja.opt(i));
+			}
+
+			return size;
+		}
+
+		if(value instanceof String){
+			return 40 + ((String) value).length() * 2;
+		}
+
+		return 16;
+	}
+
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * AQuery internal use only.
+ *
+ * Stores small cache entries in one append-only pack file per cache directory, instead of a file per url.
+ *
+ * Each record is the key, the time, the length and the data followed by a CRC32 of the data. A length of -1 marks a deleted key.
+ * The offset index is rebuilt by scanning the file when it is opened, a truncated or corrupted tail is cut off.
+ * The file is compacted when more than half of it is taken by replaced or deleted records.
+ * The oldest entries are evicted by {@link #trim(long)} when the live data outgrows the cache budget.
+ *
+ */
+
+public class PackStore {
+
+	private static final String NAME = "aquery.pack";
+	private static final int MIN_COMPACT = 1024 * 64;
+	private static final int MAX_KEY = 1024;
+
+	private static Map<File, PackStore> stores = new HashMap<File, PackStore>();
+
+	private File file;
+	private RandomAccessFile raf;
+	private LinkedHashMap<String, Entry> index;
+	private long length;
+	private long live;
+
+	private static class Entry{
+
+		long offset;
+		int size;
+		long time;
+
+		Entry(long offset, int size, long time){
+			this.offset = offset;
+			this.size = size;
+			this.time = time;
+		}
+	}
+
+	private PackStore(File dir){
+		this.file = new File(dir, NAME);
+	}
+
+	/**
+	 * Gets the pack store of a cache directory.
+	 *
+	 * @param dir the cache directory
+	 * @return the pack store
+	 */
+	public static synchronized PackStore get(File dir){
+
+		PackStore result = stores.get(dir);
+
+		if(result == null){
+			result = new PackStore(dir);
+			stores.put(dir, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Test if the file is a pack file, which should not be served as a cache entry.
+	 */
+	public static boolean isPackFile(File file){
+		return NAME.equals(file.getName());
+	}
+
+	private void open() throws IOException{
+
+		//deleted by cache cleanup or the user
+		if(raf != null && !file.exists()){
+			close();
+		}
+
+		if(raf != null) return;
+
+		file.getParentFile().mkdirs();
+
+		raf = new RandomAccessFile(file, "rw");
+		index = new LinkedHashMap<String, Entry>();
+		length = 0;
+		live = 0;
+
+		scan();
+	}
+
+	private void close(){
+
+		AQUtility.close(raf);
+		raf = null;
+		index = null;
+	}
+
+	private void scan() throws IOException{
+
+		long total = raf.length();
+		long pos = 0;
+
+		CRC32 crc = new CRC32();
+
+		try{
+
+			while(pos < total){
+
+				raf.seek(pos);
+
+				int keyLength = raf.readUnsignedShort();
+				if(keyLength == 0 || keyLength > MAX_KEY) break;
+
+				byte[] kb = new byte[keyLength];
+				raf.readFully(kb);
+				String key = new String(kb, "UTF-8");
+
+				long time = raf.readLong();
+				int size = raf.readInt();
+
+				long offset = raf.getFilePointer();
+
+				if(size < 0){
+					remove(key);
+					pos = offset;
+					continue;
+				}
+
+				if(offset + size + 4 > total) break;
+
+				byte[] data = new byte[size];
+				raf.readFully(data);
+
+				crc.reset();
+				crc.update(data);
+				if((int) crc.getValue() != raf.readInt()) break;
+
+				remove(key);
+				index.put(key, new Entry(offset, size, time));
+				live += size;
+
+				pos = offset + size + 4;
+			}
+
+		}catch(IOException e){
+			AQUtility.debug(e);
+		}
+
+		//cut off an incomplete write
+		if(pos < total){
+			AQUtility.debug("pack truncated", pos + "/" + total);
+			raf.setLength(pos);
+		}
+
+		length = pos;
+	}
+
+	private void remove(String key){
+
+		Entry old = index.remove(key);
+		if(old != null){
+			live -= old.size;
+		}
+	}
+
+	/**
+	 * Read an entry.
+	 *
+	 * @param key the key
+	 * @param expire max age in ms, 0 for no expiry
+	 * @return the data, or null if not found, expired or corrupted
+	 */
+	public synchronized byte[] get(String key, long expire){
+
+		try{
+
+			if(!file.exists()) return null;
+
+			open();
+
+			Entry entry = index.get(key);
+			if(entry == null) return null;
+
+			if(expire > 0 && System.currentTimeMillis() - entry.time > expire){
+				return null;
+			}
+
+			byte[] data = new byte[entry.size];
+
+			raf.seek(entry.offset);
+			raf.readFully(data);
+
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if((int) crc.getValue() != raf.readInt()){
+				AQUtility.debug("pack crc mismatch", key);
+				delete(key);
+				return null;
+			}
+
+			return data;
+
+		}catch(IOException e){
+			AQUtility.debug(e);
+			close();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Gets the time an entry was written.
+	 *
+	 * @param key the key
+	 * @return the time, or 0 if not found
+	 */
+	public synchronized long getTime(String key){
+
+		try{
+			if(!file.exists()) return 0;
+			open();
+		}catch(IOException e){
+			AQUtility.debug(e);
+			return 0;
+		}
+
+		Entry entry = index.get(key);
+		return entry == null ? 0 : entry.time;
+	}
+
+	/**
+	 * Test if an entry exists.
+	 *
+	 * @param key the key
+	 * @return true if exists
+	 */
+	public boolean contains(String key){
+		return getTime(key) > 0;
+	}
+
+	/**
+	 * Append an entry, replacing the existing entry of the key.
+	 *
+	 * @param key the key
+	 * @param data the data
+	 */
+	public synchronized void put(String key, byte[] data){
+
+		try{
+
+			open();
+
+			byte[] kb = key.getBytes("UTF-8");
+
+			CRC32 crc = new CRC32();
+			crc.update(data);
+
+			//one write per record, so a crash can only leave an incomplete tail
+			PredefinedBAOS baos = new PredefinedBAOS(kb.length + data.length + 18);
+			DataOutputStream dos = new DataOutputStream(baos);
+			long time = System.currentTimeMillis();
+
+			dos.writeShort(kb.length);
+			dos.write(kb);
+			dos.writeLong(time);
+			dos.writeInt(data.length);
+			long offset = length + baos.size();
+			dos.write(data);
+			dos.writeInt((int) crc.getValue());
+			dos.flush();
+
+			raf.seek(length);
+			raf.write(baos.toByteArray());
+
+			length = raf.getFilePointer();
+
+			remove(key);
+			index.put(key, new Entry(offset, data.length, time));
+			live += data.length;
+
+		}catch(IOException e){
+			AQUtility.report(e);
+			close();
+		}
+
+		compactIfNeeded();
+	}
+
+	/**
+	 * Append an entry on the store executor.
+	 *
+	 * @param key the key
+	 * @param data the data
+	 */
+	public void putAsync(final String key, final byte[] data){
+
+		AQUtility.schedule(new Runnable(){
+
+			@Override
+			public void run(){
+				put(key, data);
+			}
+		}, file, 0);
+	}
+
+	/**
+	 * Move an entry out to its own file.
+	 *
+	 * @param key the key
+	 * @param target the file
+	 * @return true if moved
+	 */
+	public boolean extract(String key, File target){
+
+		byte[] data = get(key, 0);
+		if(data == null) return false;
+
+		AQUtility.write(target, data);
+		if(!target.exists()) return false;
+
+		delete(key);
+
+		return true;
+	}
+
+	/**
+	 * Move an entry out to its own file on the store executor.
+	 *
+	 * @param key the key
+	 * @param target the file
+	 */
+	public void extractAsync(final String key, final File target){
+
+		if(!file.exists()) return;
+
+		AQUtility.schedule(new Runnable(){
+
+			@Override
+			public void run(){
+				extract(key, target);
+			}
+		}, file, 0);
+	}
+
+	/**
+	 * Delete an entry on the store executor.
+	 *
+	 * @param key the key
+	 */
+	public void deleteAsync(final String key){
+
+		if(!file.exists()) return;
+
+		AQUtility.schedule(new Runnable(){
+
+			@Override
+			public void run(){
+				delete(key);
+			}
+		}, file, 0);
+	}
+
+	/**
+	 * Delete an entry.
+	 *
+	 * @param key the key
+	 * @return true if the entry existed
+	 */
+	public synchronized boolean delete(String key){
+
+		try{
+
+			if(!file.exists()) return false;
+
+			open();
+
+			if(!index.containsKey(key)) return false;
+
+			byte[] kb = key.getBytes("UTF-8");
+
+			PredefinedBAOS baos = new PredefinedBAOS(kb.length + 14);
+			DataOutputStream dos = new DataOutputStream(baos);
+
+			dos.writeShort(kb.length);
+			dos.write(kb);
+			dos.writeLong(System.currentTimeMillis());
+			dos.writeInt(-1);
+			dos.flush();
+
+			raf.seek(length);
+			raf.write(baos.toByteArray());
+			length = raf.getFilePointer();
+
+			remove(key);
+
+		}catch(IOException e){
+			AQUtility.report(e);
+			close();
+			return false;
+		}
+
+		compactIfNeeded();
+
+		return true;
+	}
+
+	private void compactIfNeeded(){
+
+		if(index != null && length > MIN_COMPACT && live * 2 < length){
+			compact();
+		}
+	}
+
+	/**
+	 * Compact the pack file if it is mostly replaced or deleted records.
+	 */
+	public synchronized void cleanup(){
+
+		try{
+			if(!file.exists()) return;
+			open();
+		}catch(IOException e){
+			AQUtility.debug(e);
+			return;
+		}
+
+		compactIfNeeded();
+	}
+
+	/**
+	 * Evict the oldest entries until the live data fits the size, then rewrite the pack file.
+	 *
+	 * @param maxSize the max bytes of live data
+	 * @return the bytes of live data left
+	 */
+	public synchronized long trim(long maxSize){
+
+		try{
+			if(!file.exists()) return 0;
+			open();
+		}catch(IOException e){
+			AQUtility.debug(e);
+			return 0;
+		}
+
+		long result = live;
+
+		if(live <= maxSize){
+			compactIfNeeded();
+			return result;
+		}
+
+		//the index is in write order, oldest first
+		Iterator<Entry> it = index.values().iterator();
+		int evicts = 0;
+
+		while(live > maxSize && it.hasNext()){
+			live -= it.next().size;
+			it.remove();
+			evicts++;
+		}
+
+		result = live;
+
+		AQUtility.debug("pack evicted", evicts);
+
+		//the evicted records are left out of the rewrite, no delete record needed
+		compact();
+
+		return result;
+	}
+
+	/**
+	 * Gets the bytes of live data.
+	 *
+	 * @return the bytes of live data, 0 if there is no pack file
+	 */
+	public synchronized long getSize(){
+
+		try{
+			if(!file.exists()) return 0;
+			open();
+		}catch(IOException e){
+			AQUtility.debug(e);
+			return 0;
+		}
+
+		return live;
+	}
+
+	/**
+	 * Rewrite the pack file with only the live entries.
+	 */
+	public synchronized void compact(){
+
+		File temp = null;
+		RandomAccessFile out = null;
+
+		try{
+
+			if(!file.exists()) return;
+
+			open();
+
+			temp = AQUtility.createTempFile(file);
+			out = new RandomAccessFile(temp, "rw");
+
+			for(Map.Entry<String, Entry> e: index.entrySet()){
+
+				String key = e.getKey();
+				Entry entry = e.getValue();
+
+				byte[] kb = key.getBytes("UTF-8");
+				byte[] data = new byte[entry.size + 4];
+
+				raf.seek(entry.offset);
+				raf.readFully(data);
+
+				//one write per record as in put
+				PredefinedBAOS baos = new PredefinedBAOS(kb.length + data.length + 14);
+				DataOutputStream dos = new DataOutputStream(baos);
+
+				dos.writeShort(kb.length);
+				dos.write(kb);
+				dos.writeLong(entry.time);
+				dos.writeInt(entry.size);
+
+				//data and crc
+				dos.write(data);
+				dos.flush();
+
+				out.write(baos.toByteArray());
+			}
+
+			long size = out.getFilePointer();
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			close();
+
+			if(AQUtility.commit(temp, file)){
+				temp = null;
+			}
+
+			AQUtility.debug("pack compacted", size);
+
+		}catch(IOException e){
+			AQUtility.report(e);
+		}finally{
+			AQUtility.close(out);
+			if(temp != null){
+				temp.delete();
+			}
+		}
+
+		//reopened on next access
+		close();
+	}
+
+}
@@ -17,6 +17,11 @@
 package com.androidquery.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * AQuery internal use only.
@@ -24,23 +29,133 @@ import java.io.ByteArrayOutputStream;
  * Return the buffered array as is if the predefined size matches exactly the result byte array length.
  * Reduce memory allocation by half by avoiding array expand and copy.
  * 
+ * If the content outgrows the predefined size, the filled buffer is kept as a segment and writing continues 
+ * in a new one, so large arrays are never copied on growth. Segments are joined once in toByteArray().
+ * 
  */
 
 public class PredefinedBAOS extends ByteArrayOutputStream{
 
+	private static final int SEGMENT = 1024 * 16;
+	private static final int MAX_SEGMENT = 1024 * 256;
+	
+	private List<byte[]> segments;
+	private int total;
+	
+	public PredefinedBAOS(){
+		this(SEGMENT);
+	}
+	
+	/**
+	 * @param size the expected length, or a negative value if unknown
+	 */
 	public PredefinedBAOS(int size){
-		super(size);
+		super(size < 0 ? SEGMENT : Math.max(32, size));
+	}
+	
+	private void next(){
+		
+		if(segments == null){
+			segments = new ArrayList<byte[]>();
+		}
+		
+		segments.add(buf);
+		total += count;
+		
+		//grow geometrically to keep the segment list short, without copying what is already written
+		int size = Math.max(SEGMENT, Math.min(MAX_SEGMENT, total));
+		buf = new byte[size];
+		count = 0;
+		
 	}
 	
 	@Override
-	public byte[] toByteArray(){
+	public void write(int b){
 		
 		if(count == buf.length){
-			return buf;
+			next();
 		}
 		
-		return super.toByteArray();
+		buf[count++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len){
+		
+		while(len > 0){
+			
+			if(count == buf.length){
+				next();
+			}
+			
+			int n = Math.min(buf.length - count, len);
+			System.arraycopy(b, off, buf, count, n);
+			
+			count += n;
+			off += n;
+			len -= n;
+		}
+		
+	}
+	
+	@Override
+	public int size(){
+		return total + count;
+	}
 	
+	@Override
+	public void reset(){
+		segments = null;
+		total = 0;
+		count = 0;
+	}
+	
+	@Override
+	public void writeTo(OutputStream out) throws IOException{
+		
+		if(segments != null){
+			for(byte[] segment: segments){
+				out.write(segment);
+			}
+		}
+		
+		out.write(buf, 0, count);
+	}
+	
+	@Override
+	public byte[] toByteArray(){
+		
+		if(segments == null){
+		
+			if(count == buf.length){
+				return buf;
+			}
+			
+			return super.toByteArray();
+		}
+		
+		byte[] result = new byte[total + count];
+		int pos = 0;
+		
+		for(byte[] segment: segments){
+			System.arraycopy(segment, 0, result, pos, segment.length);
+			pos += segment.length;
+		}
+		
+		System.arraycopy(buf, 0, result, pos, count);
+		
+		return result;
+	
+	}
+	
+	@Override
+	public String toString(){
+		return new String(toByteArray());
+	}
+	
+	@Override
+	public String toString(String enc) throws UnsupportedEncodingException{
+		return new String(toByteArray(), enc);
 	}
 	
 }
@@ -1,5 +1,8 @@
 package com.androidquery.util;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.ProgressDialog;
@@ -10,13 +13,29 @@ import com.androidquery.AQuery;
 
 public class Progress implements Runnable{
 
+	private static long INTERVAL = 16;
+	
+	/**
+	 * Sets the minimum interval between progress updates posted to the UI thread. Default is 16 milliseconds.
+	 *
+	 * @param interval the interval in milliseconds
+	 */
+	public static void setUpdateInterval(long interval){
+		INTERVAL = Math.max(0, interval);
+	}
+	
 	private ProgressBar pb;
 	private ProgressDialog pd;
 	private Activity act;
 	private View view;
-	private boolean unknown;
-	private int bytes;
-	private int current;
+	private volatile boolean unknown;
+	private volatile boolean finished;
+	private volatile int bytes;
+	private final AtomicInteger current = new AtomicInteger();
+	private final AtomicBoolean pending = new AtomicBoolean();
+	private long lastPost;
+	private int lastPosted;
+	private Runnable updater;
 	private String url;
 	
 	public Progress(Object p){
@@ -35,22 +54,13 @@ public class Progress implements Runnable{
 	
 	public void reset(){
 		
-		if(pb != null){
-			pb.setProgress(0);
-			pb.setMax(10000);
-		}
-		if(pd != null){
-			pd.setProgress(0);
-			pd.setMax(10000);
-		}
-		
-		if(act != null){
-			act.setProgress(0);
-		}
-
 		unknown = false;
-		current = 0;
+		finished = false;
+		current.set(0);
 		bytes = 10000;
+		lastPosted = 0;
+		
+		update(true);
 		
 	}
 	
@@ -62,57 +72,102 @@ public class Progress implements Runnable{
 		}
 		
 		this.bytes = bytes;
+		current.set(0);
 		
-		if(pb != null){
-			pb.setProgress(0);
-			pb.setMax(bytes);
-		}
-		if(pd != null){
-			pd.setProgress(0);
-			pd.setMax(bytes);
-		}
-		
+		update(true);
 		
 	}
 	
+	/**
+	 * Called from the transfer thread for every chunk read. UI updates are coalesced, 
+	 * at most one update is posted per interval and per 1% of progress.
+	 *
+	 * @param delta the bytes read
+	 */
 	public void increment(int delta){
 		
-		if(pb != null){		
-			pb.incrementProgressBy(unknown ? 1 : delta);
-		}
+		int value = current.addAndGet(unknown ? 1 : delta);
 		
-		if(pd != null){
-			pd.incrementProgressBy(unknown ? 1 : delta);
+		if(pending.get()) return;
+		
+		long now = System.currentTimeMillis();
+		if(now - lastPost < INTERVAL) return;
+		
+		if(!unknown && (long) (value - lastPosted) * 100 < bytes) return;
+		
+		lastPost = now;
+		lastPosted = value;
+		update(false);
+		
+	}
+	
+	
+	public void done(){
+		
+		finished = true;
+		update(true);
+		
+	}
+	
+	private void update(boolean now){
+		
+		if(pb == null && pd == null && act == null) return;
+		
+		if(now && AQUtility.isUIThread()){
+			apply();
+			return;
 		}
 		
-		if(act != null){
-			int p;
-			if(unknown){
-				p = current++;
-			}else{
-				current+= delta;
-				p = (10000 * current) / bytes;
-			}
-			if(p > 9999){
-				p = 9999;
+		if(pending.compareAndSet(false, true)){
+			
+			if(updater == null){
+				updater = new Runnable(){
+					
+					@Override
+					public void run(){
+						pending.set(false);
+						apply();
+					}
+				};
 			}
-			act.setProgress(p);
+			
+			AQUtility.post(updater);
 		}
 		
 	}
 	
-	
-	public void done(){
+	private void apply(){
+		
+		int max = bytes;
+		int value = current.get();
+		
+		if(finished || value > max){
+			value = max;
+		}
 		
 		if(pb != null){
-			pb.setProgress(pb.getMax());
+			if(pb.getMax() != max) pb.setMax(max);
+			pb.setProgress(value);
 		}
+		
 		if(pd != null){
-			pd.setProgress(pd.getMax());
+			if(pd.getMax() != max) pd.setMax(max);
+			pd.setProgress(value);
 		}
 		
 		if(act != null){
-			act.setProgress(9999);
+			int p;
+			if(finished){
+				p = 9999;
+			}else if(unknown){
+				p = value;
+			}else{
+				p = (int) ((10000L * value) / max);
+			}
+			if(p > 9999){
+				p = 9999;
+			}
+			act.setProgress(p);
 		}
 		
 	}
@@ -22,7 +22,6 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.graphics.drawable.BitmapDrawable;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
@@ -34,7 +33,7 @@ import com.androidquery.AQuery;
  * 
  */
 
-public class RatioDrawable extends BitmapDrawable{
+public class RatioDrawable extends RoundedDrawable{
 
 	private float ratio;
 	private WeakReference<ImageView> ref;
@@ -44,8 +43,12 @@ public class RatioDrawable extends BitmapDrawable{
 	private float anchor;
 	
 	public RatioDrawable(Resources res, Bitmap bm, ImageView iv, float ratio, float anchor){
+		this(res, bm, iv, ratio, anchor, 0);
+	}
+	
+	public RatioDrawable(Resources res, Bitmap bm, ImageView iv, float ratio, float anchor, float radius){
 		
-		super(res, bm);
+		super(res, bm, radius);
 		
 		this.ref = new WeakReference<ImageView>(iv);
 		this.ratio = ratio;
@@ -60,7 +63,7 @@ public class RatioDrawable extends BitmapDrawable{
 		
 	}
 	
-	private int getWidth(ImageView iv){
+	private static int getWidth(ImageView iv){
 		
 		int width = 0;
 		
@@ -112,7 +115,7 @@ public class RatioDrawable extends BitmapDrawable{
 			if(vpad > 0 || hpad > 0){
 				canvas.clipRect(0, 0, iv.getWidth() - hpad, iv.getHeight() - vpad);
 			}
-			canvas.drawBitmap(bm, m, getPaint());
+			draw(canvas, m);
 		}
 		
 		if(!adjusted){
@@ -124,17 +127,29 @@ public class RatioDrawable extends BitmapDrawable{
 	
 	private void adjust(ImageView iv, Bitmap bm, boolean done){
 		
-		int vw = getWidth(iv);
-		if(vw <= 0) return;
-		
-		int dw = bm.getWidth();
-		int dh = bm.getHeight();
+		if(presize(iv, ratio, bm.getWidth(), bm.getHeight()) && done){
+			adjusted = true;
+		}
+	}
+	
+	/**
+	 * Sets the height of the image view for an image of the given size, so the view is laid out before the image is loaded.
+	 *
+	 * @param iv the image view
+	 * @param ratio the ratio, or AQuery.RATIO_PRESERVE
+	 * @param dw the image width
+	 * @param dh the image height
+	 * @return false if the view width is not known yet
+	 */
+	public static boolean presize(ImageView iv, float ratio, int dw, int dh){
 		
+		int vw = getWidth(iv);
+		if(vw <= 0 || dw <= 0 || dh <= 0) return false;
 		
-		int th = targetHeight(dw, dh, vw) + iv.getPaddingTop() + iv.getPaddingBottom();
+		int th = targetHeight(ratio, dw, dh, vw) + iv.getPaddingTop() + iv.getPaddingBottom();
 			
 		LayoutParams lp = iv.getLayoutParams();
-		if(lp == null) return;
+		if(lp == null) return false;
 		
 		int vh = lp.height;
 		
@@ -146,11 +161,11 @@ public class RatioDrawable extends BitmapDrawable{
 					
 		}
 		
-		if(done) adjusted = true;	
+		return true;
 	}
 	
 	
-	private int targetHeight(int dw, int dh, int vw){
+	private static int targetHeight(float ratio, int dw, int dh, int vw){
 		
 		float r = ratio;
 		
@@ -171,7 +186,7 @@ public class RatioDrawable extends BitmapDrawable{
     	
     	int dh = bm.getHeight();
     	int vw = getWidth(iv);
-    	int vh = targetHeight(dw, dh, vw);
+    	int vh = targetHeight(ratio, dw, dh, vw);
     	
     	if(dw <= 0 || dh <= 0 || vw <= 0 || vh <= 0) return null;
     	
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader.TileMode;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * AQuery internal use only.
+ *
+ * Draws a bitmap with round corners. The corners are clipped by a bitmap shader when drawn,
+ * so the same bitmap can be shared by round and square presentations without a rounded copy.
+ * The radius is in bitmap pixels and scales with the bitmap.
+ *
+ */
+
+public class RoundedDrawable extends BitmapDrawable{
+
+	private float radius;
+	private BitmapShader shader;
+	private Paint paint;
+	private Matrix matrix;
+	private RectF src;
+	private RectF rect;
+
+	public RoundedDrawable(Resources res, Bitmap bm, float radius){
+
+		super(res, bm);
+
+		this.radius = radius;
+
+		if(radius > 0 && bm != null){
+			shader = new BitmapShader(bm, TileMode.CLAMP, TileMode.CLAMP);
+			paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+			paint.setShader(shader);
+			matrix = new Matrix();
+			src = new RectF(0, 0, bm.getWidth(), bm.getHeight());
+			rect = new RectF();
+		}
+	}
+
+	/**
+	 * Gets the corner radius.
+	 *
+	 * @return the radius in bitmap pixels
+	 */
+	public float getRadius(){
+		return radius;
+	}
+
+	@Override
+	public void draw(Canvas canvas){
+
+		if(shader == null){
+			super.draw(canvas);
+			return;
+		}
+
+		rect.set(getBounds());
+		matrix.setRectToRect(src, rect, Matrix.ScaleToFit.FILL);
+
+		draw(canvas, matrix);
+	}
+
+	/**
+	 * Draws the bitmap transformed by the matrix, with round corners if a radius is set.
+	 *
+	 * @param canvas the canvas
+	 * @param m the bitmap to canvas matrix
+	 */
+	protected void draw(Canvas canvas, Matrix m){
+
+		Bitmap bm = getBitmap();
+
+		if(shader == null){
+			canvas.drawBitmap(bm, m, getPaint());
+			return;
+		}
+
+		m.mapRect(rect, src);
+		float r = radius * rect.width() / src.width();
+
+		//fade animations set the alpha of the drawable paint
+		Paint p = getPaint();
+		paint.setAlpha(p.getAlpha());
+		paint.setColorFilter(p.getColorFilter());
+
+		shader.setLocalMatrix(m);
+		canvas.drawRoundRect(rect, r, r, paint);
+	}
+
+}
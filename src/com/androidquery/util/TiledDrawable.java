@@ -0,0 +1,364 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * AQuery internal use only.
+ *
+ * Draws a large image file in tiles. A downsampled base bitmap is drawn first, and the visible part is drawn
+ * on top with tiles decoded by BitmapRegionDecoder at the sample level of the current zoom.
+ * Tiles are decoded on a background thread and kept in a LRU cache, tiles no longer visible are not decoded.
+ *
+ * Requires API 10, the base bitmap is drawn alone on older devices.
+ *
+ */
+
+public class TiledDrawable extends BitmapDrawable{
+
+	private static final int TILE = 256;
+	private static final int MAX_TILES = 64;
+	private static final int MAX_PIXELS = TILE * TILE * 24;
+
+	private static ExecutorService exe;
+
+	private File file;
+	private volatile Object decoder;
+	private int width;
+	private int height;
+	private boolean opening;
+	private volatile boolean recycled;
+
+	private Map<String, Bitmap> tiles;
+	private Set<String> pending = new HashSet<String>();
+	private Set<String> wanted = new HashSet<String>();
+
+	private Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private Rect clip = new Rect();
+	private RectF dst = new RectF();
+	private Matrix matrix = new Matrix();
+	private float[] values = new float[9];
+
+	/**
+	 * @param res the resources
+	 * @param base the downsampled image
+	 * @param file the image file
+	 */
+	public TiledDrawable(Resources res, Bitmap base, File file){
+
+		super(res, base);
+
+		this.file = file;
+		this.tiles = Collections.synchronizedMap(new BitmapCache(MAX_TILES, TILE * TILE, MAX_PIXELS));
+	}
+
+	/**
+	 * Test if tiled decoding is supported by the device.
+	 *
+	 * @return true if supported
+	 */
+	public static boolean isSupported(){
+		return android.os.Build.VERSION.SDK_INT >= 10;
+	}
+
+	@Override
+	public void draw(Canvas canvas){
+
+		super.draw(canvas);
+
+		if(recycled || file == null || !isSupported()) return;
+
+		if(decoder == null){
+			open();
+			return;
+		}
+
+		Rect bounds = getBounds();
+		if(bounds.isEmpty()) return;
+
+		if(!canvas.getClipBounds(clip) || !clip.intersect(bounds)) return;
+
+		//image pixels per screen pixel
+		canvas.getMatrix(matrix);
+		matrix.getValues(values);
+		float screen = Math.abs(values[Matrix.MSCALE_X]);
+		if(screen == 0) return;
+
+		float fx = (float) width / bounds.width();
+		float fy = (float) height / bounds.height();
+		float ratio = fx / screen;
+
+		int sample = 1;
+		while(sample * 2 <= ratio){
+			sample *= 2;
+		}
+
+		//base is sharp enough
+		Bitmap base = getBitmap();
+		if(base != null && width / sample <= base.getWidth()){
+			return;
+		}
+
+		int span = TILE * sample;
+
+		int left = (int) ((clip.left - bounds.left) * fx);
+		int top = (int) ((clip.top - bounds.top) * fy);
+		int right = Math.min(width, (int) Math.ceil((clip.right - bounds.left) * fx));
+		int bottom = Math.min(height, (int) Math.ceil((clip.bottom - bounds.top) * fy));
+
+		Set<String> visible = new HashSet<String>();
+		Map<String, Rect> missing = null;
+
+		paint.setAlpha(getPaint().getAlpha());
+
+		for(int row = top / span; row * span < bottom; row++){
+
+			for(int col = left / span; col * span < right; col++){
+
+				String key = sample + ":" + col + ":" + row;
+				visible.add(key);
+
+				Rect region = new Rect(col * span, row * span, Math.min(width, (col + 1) * span), Math.min(height, (row + 1) * span));
+				Bitmap tile = tiles.get(key);
+
+				if(tile != null){
+					dst.set(bounds.left + region.left / fx, bounds.top + region.top / fy, bounds.left + region.right / fx, bounds.top + region.bottom / fy);
+					canvas.drawBitmap(tile, null, dst, paint);
+				}else{
+					if(missing == null) missing = new HashMap<String, Rect>();
+					missing.put(key, region);
+				}
+			}
+		}
+
+		//set before the requests, a decode task skips tiles that are not wanted
+		synchronized(this){
+			wanted = visible;
+		}
+
+		if(missing != null){
+			for(Map.Entry<String, Rect> e: missing.entrySet()){
+				request(e.getKey(), e.getValue(), sample);
+			}
+		}
+
+	}
+
+	private void open(){
+
+		synchronized(this){
+			if(opening) return;
+			opening = true;
+		}
+
+		getExecutor().execute(new Runnable(){
+
+			@Override
+			public void run(){
+
+				try{
+
+					Object d = newDecoder(file);
+
+					width = (Integer) invoke(getWidth, d);
+					height = (Integer) invoke(getHeight, d);
+					decoder = d;
+
+				}catch(Throwable e){
+					AQUtility.debug(e);
+					return;
+				}
+
+				invalidate();
+			}
+		});
+	}
+
+	private void request(final String key, final Rect region, final int sample){
+
+		synchronized(this){
+			if(!pending.add(key)) return;
+		}
+
+		getExecutor().execute(new Runnable(){
+
+			@Override
+			public void run(){
+
+				synchronized(TiledDrawable.this){
+					if(recycled || !wanted.contains(key)){
+						pending.remove(key);
+						return;
+					}
+				}
+
+				Options options = new Options();
+				options.inSampleSize = sample;
+
+				Bitmap base = getBitmap();
+				if(base != null && base.getConfig() != null){
+					options.inPreferredConfig = base.getConfig();
+				}
+
+				Bitmap tile = null;
+				Object d = decoder;
+
+				try{
+					if(d != null){
+						tile = (Bitmap) invoke(decodeRegion, d, region, options);
+					}
+				}catch(OutOfMemoryError e){
+					tiles.clear();
+					AQUtility.report(e);
+				}catch(Throwable e){
+					AQUtility.debug(e);
+				}
+
+				if(tile != null){
+					tiles.put(key, tile);
+				}
+
+				synchronized(TiledDrawable.this){
+					pending.remove(key);
+				}
+
+				if(tile != null){
+					invalidate();
+				}
+			}
+		});
+	}
+
+	private void invalidate(){
+
+		AQUtility.post(new Runnable(){
+
+			@Override
+			public void run(){
+				invalidateSelf();
+			}
+		});
+	}
+
+	/**
+	 * Release the tiles and the region decoder. The base bitmap is still drawn.
+	 */
+	public void recycle(){
+
+		recycled = true;
+		tiles.clear();
+
+		final Object d = decoder;
+		decoder = null;
+
+		if(d != null){
+
+			getExecutor().execute(new Runnable(){
+
+				@Override
+				public void run(){
+					try{
+						invoke(recycle, d);
+					}catch(Throwable e){
+						AQUtility.debug(e);
+					}
+				}
+			});
+		}
+	}
+
+	private static Method newInstance;
+	private static Method getWidth;
+	private static Method getHeight;
+	private static Method decodeRegion;
+	private static Method recycle;
+
+	private static synchronized void resolve() throws Exception{
+
+		if(newInstance != null) return;
+
+		Class<?> cls = Class.forName("android.graphics.BitmapRegionDecoder");
+
+		getWidth = cls.getMethod("getWidth");
+		getHeight = cls.getMethod("getHeight");
+		decodeRegion = cls.getMethod("decodeRegion", Rect.class, Options.class);
+		recycle = cls.getMethod("recycle");
+		newInstance = cls.getMethod("newInstance", String.class, boolean.class);
+	}
+
+	private static Object newDecoder(File file) throws Throwable{
+
+		resolve();
+
+		Object result = invoke(newInstance, null, file.getAbsolutePath(), false);
+		if(result == null) throw new IOException("no region decoder:" + file);
+
+		return result;
+	}
+
+	//rethrows the error of the method, such as OutOfMemoryError
+	private static Object invoke(Method method, Object target, Object... params) throws Throwable{
+
+		try{
+			return method.invoke(target, params);
+		}catch(InvocationTargetException e){
+			throw e.getCause();
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor(){
+
+		if(exe == null){
+
+			exe = Executors.newSingleThreadExecutor(new ThreadFactory(){
+
+				@Override
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "aquery-tiles");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+		}
+
+		return exe;
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AQuery internal use only.
+ *
+ * Write-behind buffer for cache files. Writes are held for a short time and handed to the store executor in one burst,
+ * a newer write of the same file replaces the pending one, and pending writes can be dropped before they are flushed.
+ * Each file is written on its own store lane, in order with the other writes of the same file.
+ *
+ */
+
+public class WriteBuffer implements Runnable{
+
+	private long delay;
+	private long maxBytes;
+
+	private LinkedHashMap<File, byte[]> pending = new LinkedHashMap<File, byte[]>();
+	private Map<String, File> keys = new HashMap<String, File>();
+	private long bytes;
+	private boolean scheduled;
+
+	/**
+	 * @param delay max time in ms a write is held before flushing
+	 * @param maxBytes pending bytes that trigger a flush right away
+	 */
+	public WriteBuffer(long delay, long maxBytes){
+		this.delay = delay;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Queue a write, replacing the pending write of the same file.
+	 *
+	 * @param key the key to drop the write with, such as the url
+	 * @param file the file
+	 * @param data the data
+	 */
+	public void put(String key, File file, byte[] data){
+
+		if(file == null || data == null) return;
+
+		long wait;
+
+		synchronized(this){
+
+			byte[] old = pending.remove(file);
+			if(old != null){
+				bytes -= old.length;
+			}
+
+			pending.put(file, data);
+			bytes += data.length;
+
+			if(key != null){
+				keys.put(key, file);
+			}
+
+			if(bytes >= maxBytes){
+				wait = 0;
+			}else if(!scheduled){
+				wait = delay;
+			}else{
+				return;
+			}
+
+			scheduled = true;
+		}
+
+		AQUtility.schedule(this, this, wait);
+	}
+
+	/**
+	 * Drop the pending write of the key, if not flushed yet.
+	 *
+	 * @param key the key
+	 * @return true if a pending write was dropped
+	 */
+	public synchronized boolean drop(String key){
+
+		File file = keys.remove(key);
+		if(file == null) return false;
+
+		byte[] old = pending.remove(file);
+		if(old == null) return false;
+
+		bytes -= old.length;
+		return true;
+	}
+
+	/**
+	 * Hand all pending data to the store executor now.
+	 */
+	public void flushAsync(){
+
+		//only queues the writes, so writes of the same file that follow are queued behind them
+		run();
+	}
+
+	/**
+	 * Write all pending data on the calling thread.
+	 */
+	public void flush(){
+
+		Map<File, byte[]> batch = take();
+		if(batch == null) return;
+
+		for(Map.Entry<File, byte[]> entry: batch.entrySet()){
+			AQUtility.store(entry.getKey(), entry.getValue());
+		}
+
+		AQUtility.debug("write behind flushed", batch.size());
+	}
+
+	private synchronized Map<File, byte[]> take(){
+
+		scheduled = false;
+
+		if(pending.isEmpty()) return null;
+
+		Map<File, byte[]> batch = pending;
+		pending = new LinkedHashMap<File, byte[]>();
+		keys.clear();
+		bytes = 0;
+
+		return batch;
+	}
+
+	@Override
+	public void run(){
+
+		Map<File, byte[]> batch = take();
+		if(batch == null) return;
+
+		//a later storeAsync of the same file is queued behind this write
+		for(Map.Entry<File, byte[]> entry: batch.entrySet()){
+			File file = entry.getKey();
+			AQUtility.schedule(new Common().method(Common.STORE_FILE, file, entry.getValue()), file, 0);
+		}
+
+		AQUtility.debug("write behind queued", batch.size());
+	}
+
+}
@@ -35,6 +35,8 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
 import android.util.Xml;
@@ -47,15 +49,34 @@ import android.util.Xml;
  * The toString method return a string that represents the xml content.
  * WARNING: The toString methods are for debugging only and do not guarantee a proper XML transformation.
  * 
+ * With setPullParser(true), documents are parsed with XmlPullParser into a compact element table instead of a W3C dom.
+ * 
  */
 
 public class XmlDom {
 
+	private static boolean PULL_PARSER = false;
+	private static DocumentBuilderFactory FACTORY;
+	
 	private Element root;
+	private XmlNodes nodes;
+	private int index;
 	
+	/**
+	 * Parse documents with XmlPullParser into a compact element table instead of a W3C dom.
+	 * Uses less memory for large documents, but getElement() returns null for such nodes.
+	 * 
+	 * Default is false.
+	 *
+	 * @param pull use the pull parser
+	 */
+	public static void setPullParser(boolean pull){
+		PULL_PARSER = pull;
+	}
 	
 	/**
 	 * Gets the element that this node represent.
+	 * Returns null if the document was parsed with the pull parser.
 	 *
 	 * @return the element
 	 * 
@@ -75,6 +96,11 @@ public class XmlDom {
 		this.root = element;
 	}
 	
+	XmlDom(XmlNodes nodes, int index){
+		this.nodes = nodes;
+		this.index = index;
+	}
+	
 	/**
 	 * Instantiates a new xml dom.
 	 *
@@ -105,11 +131,13 @@ public class XmlDom {
 	 */
 	public XmlDom(InputStream is) throws SAXException{
 		
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder;
+		if(PULL_PARSER){
+			this.nodes = parse(is);
+			return;
+		}
 		
 		try {
-			builder = factory.newDocumentBuilder();
+			DocumentBuilder builder = newDocumentBuilder();
 			Document doc = builder.parse(is);			
 			this.root = (Element) doc.getDocumentElement();
 		}catch(ParserConfigurationException e) {			
@@ -119,6 +147,113 @@ public class XmlDom {
 	
 	}
 	
+	private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException{
+		
+		synchronized(XmlDom.class){
+			if(FACTORY == null){
+				FACTORY = DocumentBuilderFactory.newInstance();
+			}
+			return FACTORY.newDocumentBuilder();
+		}
+	}
+	
+	private static XmlPullParser newPullParser(InputStream is) throws XmlPullParserException{
+		
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(is, null);
+		return parser;
+	}
+	
+	private static XmlNodes parse(InputStream is) throws SAXException{
+		
+		try{
+			return XmlNodes.parse(newPullParser(is));
+		}catch(XmlPullParserException e){
+			throw new SAXException(e);
+		}catch(IOException e){
+			throw new SAXException(e);
+		}
+	}
+	
+	/**
+	 * Invoke handler.callback(XmlDom) for each element that matches the selector while parsing,
+	 * without building the tree of the whole document. Parsing stops if the callback returns false.
+	 * 
+	 * Only the subtree of a matched element is kept. Matched elements nested inside another match are not reported.
+	 * 
+	 * @param is Raw XML
+	 * @param selector the selector, see select(String)
+	 * @param handler the handler object with the callback method
+	 * @param callback the callback method name
+	 * @throws SAXException the SAX exception
+	 */
+	public static void stream(InputStream is, String selector, Object handler, String callback) throws SAXException{
+		
+		try{
+			stream(newPullParser(is), selector, handler, callback);
+		}catch(XmlPullParserException e){
+			throw new SAXException(e);
+		}
+	}
+	
+	/**
+	 * Invoke handler.callback(XmlDom) for each element that matches the selector while parsing,
+	 * without building the tree of the whole document. Parsing stops if the callback returns false.
+	 * 
+	 * @param parser the parser
+	 * @param selector the selector, see select(String)
+	 * @param handler the handler object with the callback method
+	 * @param callback the callback method name
+	 * @throws SAXException the SAX exception
+	 */
+	public static void stream(XmlPullParser parser, String selector, final Object handler, final String callback) throws SAXException{
+		
+		stream(parser, selector, new Listener(){
+			
+			@Override
+			public boolean element(XmlDom dom){
+				Object result = AQUtility.invokeHandler(handler, callback, false, true, STREAM_SIG, dom);
+				return !Boolean.FALSE.equals(result);
+			}
+		});
+	}
+	
+	/**
+	 * Receives the elements matched by stream(XmlPullParser, String, Listener).
+	 */
+	public interface Listener{
+		
+		/**
+		 * Called with each matched element while parsing.
+		 * 
+		 * @param dom the matched element
+		 * @return false to stop parsing
+		 */
+		public boolean element(XmlDom dom);
+	}
+	
+	/**
+	 * Invoke listener.element(XmlDom) for each element that matches the selector while parsing,
+	 * without building the tree of the whole document. Parsing stops if the listener returns false.
+	 * 
+	 * @param parser the parser
+	 * @param selector the selector, see select(String)
+	 * @param listener the listener
+	 * @throws SAXException the SAX exception
+	 */
+	public static void stream(XmlPullParser parser, String selector, Listener listener) throws SAXException{
+		
+		try{
+			XmlNodes.stream(parser, new XmlSelector(selector), listener);
+		}catch(XmlPullParserException e){
+			throw new SAXException(e);
+		}catch(IOException e){
+			throw new SAXException(e);
+		}
+	}
+	
+	private static final Class<?>[] STREAM_SIG = {XmlDom.class};
+	
 	/**
 	 * Return a node that represents the first matched tag.
 	 *
@@ -131,6 +266,10 @@ public class XmlDom {
 	 */
 	public XmlDom tag(String tag){
 		
+		if(nodes != null){
+			return tag(tag, null, null);
+		}
+		
 		NodeList nl = root.getElementsByTagName(tag);
 		
 		XmlDom result = null;
@@ -236,7 +375,11 @@ public class XmlDom {
 	 * @see testChildren2
 	 */
 	public List<XmlDom> children(String tag, String attr, String value){
-							
+		
+		if(nodes != null){
+			return nodes.children(index, tag, attr, value);
+		}
+		
 		return convert(root.getChildNodes(), tag, attr, value);
 	
 	}
@@ -256,10 +399,78 @@ public class XmlDom {
 	 */
 	public List<XmlDom> tags(String tag, String attr, String value){
 		
+		if(nodes != null){
+			return nodes.descendants(index, tag, attr, value);
+		}
+		
 		NodeList nl = root.getElementsByTagName(tag);		
 		return convert(nl, null, attr, value);
 	}
 	
+	/**
+	 * Return a list of nodes that match the selector, including the current node, in document order.
+	 * 
+	 * Supports tag names, *, descendant (space) and child (>) combinators, and attribute filters [attr] and [attr=value].
+	 * 
+	 * For example: "feed > entry[type=x]"
+	 *
+	 * @param selector the selector
+	 * @return the list of xml dom
+	 */
+	public List<XmlDom> select(String selector){
+		
+		XmlSelector sel = new XmlSelector(selector);
+		
+		if(nodes != null){
+			return nodes.select(index, sel);
+		}
+		
+		List<XmlDom> result = new ArrayList<XmlDom>();
+		select(root, sel, new String[16], new String[16][], 0, result);
+		return result;
+	}
+	
+	private static void select(Element e, XmlSelector sel, String[] path, String[][] attrs, int depth, List<XmlDom> result){
+		
+		if(depth == path.length){
+			String[] p = new String[depth * 2];
+			String[][] a = new String[depth * 2][];
+			System.arraycopy(path, 0, p, 0, depth);
+			System.arraycopy(attrs, 0, a, 0, depth);
+			path = p;
+			attrs = a;
+		}
+		
+		path[depth] = e.getTagName();
+		attrs[depth] = attrs(e);
+		
+		if(sel.matches(path, attrs, depth)){
+			result.add(new XmlDom(e));
+		}
+		
+		NodeList nl = e.getChildNodes();
+		for(int i = 0; i < nl.getLength(); i++){
+			Node n = nl.item(i);
+			if(n.getNodeType() == Node.ELEMENT_NODE){
+				select((Element) n, sel, path, attrs, depth + 1, result);
+			}
+		}
+	}
+	
+	private static String[] attrs(Element e){
+		
+		if(!e.hasAttributes()) return null;
+		
+		NamedNodeMap nm = e.getAttributes();
+		String[] result = new String[nm.getLength() * 2];
+		for(int i = 0; i < nm.getLength(); i++){
+			Attr attr = (Attr) nm.item(i);
+			result[i * 2] = attr.getName();
+			result[i * 2 + 1] = attr.getValue();
+		}
+		return result;
+	}
+	
 	//convert to list and filter to nodes that has attr=value
 	private static List<XmlDom> convert(NodeList nl, String tag, String attr, String value){
 		
@@ -325,6 +536,11 @@ public class XmlDom {
 	 */
 	public String attr(String name){
 		
+		if(nodes != null){
+			String result = XmlNodes.attr(nodes.attrs[index], name);
+			return result == null ? "" : result;
+		}
+		
 		String result = root.getAttribute(name);
 		return result;
 	}
@@ -374,7 +590,11 @@ public class XmlDom {
 				spaces = new String(chars);
 			}
 			
-			serialize(root, s, 0, spaces);
+			if(nodes != null){
+				serialize(index, s, 0, spaces);
+			}else{
+				serialize(root, s, 0, spaces);
+			}
 			s.endDocument();
 			
 			return sw.toString();
@@ -404,6 +624,10 @@ public class XmlDom {
 	 */
 	public String text(){
 		
+		if(nodes != null){
+			return nodes.texts[index];
+		}
+		
 		NodeList list = root.getChildNodes();
 		if(list.getLength() == 1) return list.item(0).getNodeValue();
 		
@@ -490,5 +714,37 @@ public class XmlDom {
 		
 	}
 	
+	private void serialize(int i, XmlSerializer s, int depth, String spaces) throws Exception{
+		
+		String name = nodes.names[i];
+		
+		writeSpace(s, depth, spaces);
+		
+		s.startTag("", name);
+		
+		String[] attrs = nodes.attrs[i];
+		for(int j = 0; j < attrs.length; j += 2){
+			s.attribute("", attrs[j], attrs[j + 1]);
+		}
+		
+		String text = nodes.texts[i];
+		if(text != null && text.length() > 0){
+			s.text(text);
+		}
+		
+		int end = nodes.ends[i];
+		
+		for(int j = i + 1; j < end; j = nodes.ends[j]){
+			serialize(j, s, depth + 1, spaces);
+		}
+		
+		if(end > i + 1){
+			writeSpace(s, depth, spaces);
+		}
+		
+		s.endTag("", name);
+		
+	}
+	
 	
 }
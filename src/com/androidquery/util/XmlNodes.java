@@ -0,0 +1,355 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * AQuery internal use only.
+ *
+ * Compact element table built with XmlPullParser. Elements are stored in document order,
+ * the descendants of element i are the elements from i + 1 to ends[i] (exclusive).
+ *
+ * Tag and attribute names are interned, attributes are stored as name and value pairs.
+ *
+ */
+
+class XmlNodes {
+
+	private static final String[] NO_ATTRS = new String[0];
+
+	String[] names;
+	String[][] attrs;
+	String[] texts;
+	int[] ends;
+	int size;
+
+	private XmlNodes(int capacity){
+		names = new String[capacity];
+		attrs = new String[capacity][];
+		texts = new String[capacity];
+		ends = new int[capacity];
+	}
+
+	/**
+	 * Parse the whole document.
+	 */
+	static XmlNodes parse(XmlPullParser parser) throws XmlPullParserException, IOException{
+
+		int event = parser.getEventType();
+		while(event != XmlPullParser.START_TAG){
+			if(event == XmlPullParser.END_DOCUMENT){
+				throw new XmlPullParserException("No root element");
+			}
+			event = parser.next();
+		}
+
+		return subtree(parser);
+	}
+
+	/**
+	 * Parse the element at the current START_TAG, the parser is positioned at the matching END_TAG when returned.
+	 */
+	static XmlNodes subtree(XmlPullParser parser) throws XmlPullParserException, IOException{
+
+		XmlNodes nodes = new XmlNodes(16);
+		Builder builder = nodes.new Builder();
+
+		int base = parser.getDepth() - 1;
+		builder.start(parser.getName(), attrs(parser));
+
+		while(true){
+
+			int event = parser.next();
+
+			switch(event){
+				case XmlPullParser.START_TAG:
+					builder.start(parser.getName(), attrs(parser));
+					break;
+				case XmlPullParser.TEXT:
+					builder.text(parser.getText());
+					break;
+				case XmlPullParser.END_TAG:
+					builder.end();
+					if(parser.getDepth() - 1 == base) return nodes;
+					break;
+				case XmlPullParser.END_DOCUMENT:
+					throw new XmlPullParserException("Unexpected end of document");
+			}
+		}
+
+	}
+
+	/**
+	 * Invoke the listener with each element that matches the selector, without building the tree of the whole document.
+	 *
+	 * Only the subtree of the matched element is kept. Matched elements nested inside another match are not reported.
+	 */
+	static void stream(XmlPullParser parser, XmlSelector selector, XmlDom.Listener listener) throws XmlPullParserException, IOException{
+
+		String[] names = new String[16];
+		String[][] attrs = new String[16][];
+
+		int event = parser.getEventType();
+
+		while(event != XmlPullParser.END_DOCUMENT){
+
+			if(event == XmlPullParser.START_TAG){
+
+				int depth = parser.getDepth() - 1;
+
+				if(depth >= names.length){
+					names = grow(names, depth * 2);
+					attrs = grow(attrs, depth * 2);
+				}
+
+				names[depth] = parser.getName().intern();
+				attrs[depth] = attrs(parser);
+
+				if(selector.matches(names, attrs, depth)){
+					XmlNodes nodes = subtree(parser);
+					if(!listener.element(new XmlDom(nodes, 0))) return;
+				}
+			}
+
+			event = parser.next();
+		}
+
+	}
+
+	private static String[] attrs(XmlPullParser parser){
+
+		int count = parser.getAttributeCount();
+		if(count <= 0) return NO_ATTRS;
+
+		String[] result = new String[count * 2];
+		for(int i = 0; i < count; i++){
+			result[i * 2] = parser.getAttributeName(i).intern();
+			result[i * 2 + 1] = parser.getAttributeValue(i);
+		}
+
+		return result;
+	}
+
+	static String attr(String[] attrs, String name){
+
+		if(attrs == null) return null;
+
+		for(int i = 0; i < attrs.length; i += 2){
+			if(attrs[i].equals(name)) return attrs[i + 1];
+		}
+
+		return null;
+	}
+
+	//Arrays.copyOf is not available before API 9
+	@SuppressWarnings("unchecked")
+	private static <T> T[] grow(T[] a, int n){
+		T[] result = (T[]) Array.newInstance(a.getClass().getComponentType(), n);
+		System.arraycopy(a, 0, result, 0, a.length);
+		return result;
+	}
+
+	private static int[] grow(int[] a, int n){
+		int[] result = new int[n];
+		System.arraycopy(a, 0, result, 0, a.length);
+		return result;
+	}
+
+	private static boolean[] grow(boolean[] a, int n){
+		boolean[] result = new boolean[n];
+		System.arraycopy(a, 0, result, 0, a.length);
+		return result;
+	}
+
+	private static boolean matches(String tag, String name){
+		return tag == null || "*".equals(tag) || tag.equals(name);
+	}
+
+	boolean matches(int i, String tag, String attr, String value){
+
+		if(!matches(tag, names[i])) return false;
+		if(attr == null) return true;
+
+		String v = attr(attrs[i], attr);
+		if(v == null) return false;
+
+		return value == null || value.equals(v);
+	}
+
+	List<XmlDom> descendants(int i, String tag, String attr, String value){
+
+		List<XmlDom> result = new ArrayList<XmlDom>();
+
+		for(int j = i + 1; j < ends[i]; j++){
+			if(matches(j, tag, attr, value)){
+				result.add(new XmlDom(this, j));
+			}
+		}
+
+		return result;
+	}
+
+	List<XmlDom> children(int i, String tag, String attr, String value){
+
+		List<XmlDom> result = new ArrayList<XmlDom>();
+
+		for(int j = i + 1; j < ends[i]; j = ends[j]){
+			if(matches(j, tag, attr, value)){
+				result.add(new XmlDom(this, j));
+			}
+		}
+
+		return result;
+	}
+
+	List<XmlDom> select(int i, XmlSelector selector){
+
+		List<XmlDom> result = new ArrayList<XmlDom>();
+
+		int[] stack = new int[16];
+		String[] path = new String[16];
+		String[][] pathAttrs = new String[16][];
+		int depth = 0;
+
+		for(int j = i; j < ends[i]; j++){
+
+			while(depth > 0 && j >= ends[stack[depth - 1]]){
+				depth--;
+			}
+
+			if(depth == stack.length){
+				stack = grow(stack, depth * 2);
+				path = grow(path, depth * 2);
+				pathAttrs = grow(pathAttrs, depth * 2);
+			}
+
+			stack[depth] = j;
+			path[depth] = names[j];
+			pathAttrs[depth] = attrs[j];
+
+			if(selector.matches(path, pathAttrs, depth)){
+				result.add(new XmlDom(this, j));
+			}
+
+			depth++;
+		}
+
+		return result;
+	}
+
+	private class Builder{
+
+		private int[] open = new int[16];
+		private int[] counts = new int[16];
+		private boolean[] elements = new boolean[16];
+		private String[] raws = new String[16];
+		private StringBuilder[] sbs = new StringBuilder[16];
+		private int depth;
+
+		void start(String name, String[] attributes){
+
+			child(true);
+
+			if(size == names.length){
+				int capacity = size * 2;
+				names = grow(names, capacity);
+				attrs = grow(attrs, capacity);
+				texts = grow(texts, capacity);
+				ends = grow(ends, capacity);
+			}
+
+			if(depth == open.length){
+				int capacity = depth * 2;
+				open = grow(open, capacity);
+				counts = grow(counts, capacity);
+				elements = grow(elements, capacity);
+				raws = grow(raws, capacity);
+				sbs = grow(sbs, capacity);
+			}
+
+			int i = size++;
+			names[i] = name.intern();
+			attrs[i] = attributes;
+
+			open[depth] = i;
+			counts[depth] = 0;
+			elements[depth] = false;
+			raws[depth] = null;
+			if(sbs[depth] != null) sbs[depth].setLength(0);
+
+			depth++;
+		}
+
+		private void child(boolean element){
+
+			if(depth == 0) return;
+
+			int d = depth - 1;
+			if(counts[d] == 0) elements[d] = element;
+			counts[d]++;
+		}
+
+		void text(String raw){
+
+			if(depth == 0) return;
+
+			child(false);
+
+			int d = depth - 1;
+			if(counts[d] == 1){
+				raws[d] = raw;
+			}
+
+			String trimmed = raw.trim();
+			if(trimmed.length() > 0){
+				if(sbs[d] == null) sbs[d] = new StringBuilder();
+				sbs[d].append(trimmed);
+			}
+		}
+
+		void end(){
+
+			int d = --depth;
+			int i = open[d];
+
+			String text;
+
+			//same as the dom version, a single child node returns its raw value
+			if(counts[d] == 1){
+				text = elements[d] ? null : raws[d];
+			}else if(sbs[d] == null || sbs[d].length() == 0){
+				text = "";
+			}else{
+				text = sbs[d].toString();
+			}
+
+			texts[i] = text;
+			ends[i] = size;
+
+			raws[d] = null;
+		}
+
+	}
+
+}
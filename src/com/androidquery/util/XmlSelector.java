@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AQuery internal use only.
+ *
+ * A minimal selector for XmlDom. Supports tag names, *, descendant (space) and child (>) combinators,
+ * and attribute filters [attr] and [attr=value].
+ *
+ * For example: "feed > entry[type=x] link[rel]"
+ *
+ */
+
+class XmlSelector {
+
+	private String[] tags;
+	private String[][] filters;
+	private boolean[] child;
+
+	XmlSelector(String selector){
+
+		List<String> tokens = tokenize(selector);
+
+		List<String> tagList = new ArrayList<String>();
+		List<String[]> filterList = new ArrayList<String[]>();
+		List<Boolean> childList = new ArrayList<Boolean>();
+
+		boolean nextChild = false;
+
+		for(String token: tokens){
+
+			if(">".equals(token)){
+				nextChild = true;
+				continue;
+			}
+
+			int b = token.indexOf('[');
+			String tag = b == -1 ? token : token.substring(0, b);
+			if(tag.length() == 0) tag = "*";
+
+			tagList.add(tag);
+			filterList.add(b == -1 ? null : parseFilters(token.substring(b)));
+			childList.add(nextChild && tagList.size() > 1);
+
+			nextChild = false;
+		}
+
+		if(tagList.isEmpty()){
+			throw new IllegalArgumentException("Empty selector: " + selector);
+		}
+
+		int n = tagList.size();
+		tags = tagList.toArray(new String[n]);
+		filters = filterList.toArray(new String[n][]);
+		child = new boolean[n];
+		for(int i = 0; i < n; i++){
+			child[i] = childList.get(i);
+		}
+
+	}
+
+	private static List<String> tokenize(String selector){
+
+		List<String> result = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+
+		boolean bracket = false;
+
+		for(int i = 0; i < selector.length(); i++){
+
+			char c = selector.charAt(i);
+
+			if(bracket){
+				sb.append(c);
+				if(c == ']') bracket = false;
+			}else if(c == '['){
+				sb.append(c);
+				bracket = true;
+			}else if(c == '>' || Character.isWhitespace(c)){
+				if(sb.length() > 0){
+					result.add(sb.toString());
+					sb.setLength(0);
+				}
+				if(c == '>') result.add(">");
+			}else{
+				sb.append(c);
+			}
+
+		}
+
+		if(sb.length() > 0){
+			result.add(sb.toString());
+		}
+
+		return result;
+	}
+
+	//name and value pairs, value is null for presence check
+	private static String[] parseFilters(String str){
+
+		List<String> result = new ArrayList<String>();
+
+		int i = 0;
+		while(i < str.length()){
+
+			int start = str.indexOf('[', i);
+			if(start == -1) break;
+			int end = str.indexOf(']', start);
+			if(end == -1) end = str.length();
+
+			String filter = str.substring(start + 1, end);
+			int eq = filter.indexOf('=');
+
+			if(eq == -1){
+				result.add(filter.trim());
+				result.add(null);
+			}else{
+				result.add(filter.substring(0, eq).trim());
+				result.add(unquote(filter.substring(eq + 1).trim()));
+			}
+
+			i = end + 1;
+		}
+
+		return result.toArray(new String[result.size()]);
+	}
+
+	private static String unquote(String value){
+
+		int len = value.length();
+		if(len >= 2){
+			char c = value.charAt(0);
+			if((c == '"' || c == '\'') && value.charAt(len - 1) == c){
+				return value.substring(1, len - 1);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Test if the last element of the path matches.
+	 *
+	 * @param names tag names from the top most element
+	 * @param attrs attributes of each element as name and value pairs, can be null
+	 * @param last index of the element to test
+	 */
+	boolean matches(String[] names, String[][] attrs, int last){
+		return matches(tags.length - 1, names, attrs, last);
+	}
+
+	private boolean matches(int step, String[] names, String[][] attrs, int pos){
+
+		if(!matches(step, names[pos], attrs[pos])) return false;
+		if(step == 0) return true;
+
+		if(child[step]){
+			return pos > 0 && matches(step - 1, names, attrs, pos - 1);
+		}
+
+		for(int i = pos - 1; i >= 0; i--){
+			if(matches(step - 1, names, attrs, i)) return true;
+		}
+
+		return false;
+	}
+
+	private boolean matches(int step, String name, String[] attrs){
+
+		String tag = tags[step];
+		if(!"*".equals(tag) && !tag.equals(name)) return false;
+
+		String[] filter = filters[step];
+		if(filter == null) return true;
+
+		for(int i = 0; i < filter.length; i += 2){
+
+			String value = XmlNodes.attr(attrs, filter[i]);
+			if(value == null) return false;
+			if(filter[i + 1] != null && !filter[i + 1].equals(value)) return false;
+		}
+
+		return true;
+	}
+
+}
@@ -7,10 +7,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,7 +28,9 @@ import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -35,8 +39,11 @@ import org.xmlpull.v1.XmlPullParser;
 import com.androidquery.AQuery;
 import com.androidquery.auth.BasicHandle;
 import com.androidquery.callback.AjaxCallback;
+import com.androidquery.callback.AjaxFuture;
 import com.androidquery.callback.AjaxStatus;
+import com.androidquery.callback.JSONArrayStream;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.JSONSnapshot;
 import com.androidquery.util.XmlDom;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -284,6 +291,48 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
 		assertTrue(cached.exists());
 		assertTrue(cached.length() > 100);
 		
+    }
+	
+	public void testAjaxMemCache() {
+		
+		String url = "http://www.google.com/uds/GnewsSearch?q=Obama&v=1.0";
+        
+		AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>(){
+			
+			@Override
+			public void callback(String url, JSONObject jo, AjaxStatus status) {
+				done(url, jo, status);
+			}
+			
+		};
+		
+		cb.url(url).type(JSONObject.class).memCache(true).expire(15 * 60 * 1000);
+        aq.ajax(cb);
+        
+        waitAsync(2000);
+        
+        JSONObject jo = (JSONObject) result;
+        assertNotNull(jo);
+        
+        result = null;
+        
+        AjaxCallback<JSONObject> cb2 = new AjaxCallback<JSONObject>(){
+			
+			@Override
+			public void callback(String url, JSONObject jo, AjaxStatus status) {
+				done(url, jo, status);
+			}
+			
+		};
+		
+		cb2.url(url).type(JSONObject.class).memCache(true).expire(15 * 60 * 1000);
+        aq.ajax(cb2);
+        
+        waitAsync(2000);
+        
+        assertSame(jo, result);
+        assertEquals(AjaxStatus.MEMORY, status.getSource());
+        
     }
 	
 	//Test: public <K> T ajax(String url, Class<K> type, long expire, Object handler, String callback)
@@ -408,6 +457,50 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
 		
 	}
 	
+	public void testNegativeCache(){
+		
+		String url = "http://androidquery.appspot.com/test/fake?negative";
+		
+		AjaxCallback.setNegativeCache(true);
+		AjaxCallback.getNegativeCache().clear();
+		
+		try{
+		
+	        aq.ajax(url, JSONObject.class, new AjaxCallback<JSONObject>() {
+	
+	            @Override
+	            public void callback(String url, JSONObject json, AjaxStatus status) {
+	            	done(url, json, status);
+	            }
+	        });
+			
+	        waitAsync();
+	        
+	        assertEquals(404, status.getCode());
+	        assertFalse(status.getNegative());
+	        
+	        status = null;
+	        
+	        aq.ajax(url, JSONObject.class, new AjaxCallback<JSONObject>() {
+	
+	            @Override
+	            public void callback(String url, JSONObject json, AjaxStatus status) {
+	            	done(url, json, status);
+	            }
+	        });
+			
+	        waitAsync();
+	        
+	        assertNull(result);
+	        assertEquals(404, status.getCode());
+	        assertTrue(status.getNegative());
+	        
+		}finally{
+			AjaxCallback.setNegativeCache(false);
+			AjaxCallback.getNegativeCache().clear();
+		}
+	}
+	
 	public void test404Error(){
 		
 		
@@ -507,6 +600,27 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
         checkStatus(status);
     }
 	
+	public void testFutureThen() throws Exception {
+		
+		String url = "http://www.google.com/uds/GnewsSearch?q=Obama&v=1.0";
+        
+		AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();		
+		cb.url(url).type(JSONObject.class);		
+        
+		AjaxFuture<Object> future = aq.future(cb).then(new AjaxFuture.Function<JSONObject, Object>() {
+			
+			@Override
+			public Object apply(JSONObject jo, AjaxStatus status) {
+				return jo.opt("responseData");
+			}
+		});
+		
+		Object data = future.get(10, TimeUnit.SECONDS);
+        
+        assertNotNull(data);       
+        checkStatus(future.getStatus());
+    }
+	
 	public void testWaitBlockInputStream() {
 		
 		String url = "http://www.google.com/uds/GnewsSearch?q=Obama&v=1.0";
@@ -1147,6 +1261,49 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
 	}
 	
 	
+	public void testAjaxXmlElement(){
+		
+		String url = "http://androidquery.appspot.com/test/feed.xml";
+		
+		//served from the file cache, the elements are streamed from the stored file
+		StringBuilder sb = new StringBuilder("<feed>");
+		for(int i = 0; i < 8; i++){
+			sb.append("<entry><title>title " + i + "</title></entry>");
+		}
+		sb.append("</feed>");
+		
+		File cached = AQUtility.getCacheFile(AQUtility.getCacheDir(getActivity()), url);
+		AQUtility.write(cached, sb.toString().getBytes());
+		
+		final List<String> titles = new ArrayList<String>();
+		
+		AjaxCallback<XmlPullParser> cb = new AjaxCallback<XmlPullParser>(){
+			
+			public void element(String url, XmlDom entry, AjaxStatus status) {
+				titles.add(entry.text("title"));
+			}
+			
+			public void callback(String url, XmlPullParser xpp, AjaxStatus status) {
+				done(url, xpp, status);
+			}
+			
+		};
+		
+		cb.xmlElement("feed > entry");
+		cb.url(url).type(XmlPullParser.class).fileCache(true);
+		
+		aq.ajax(cb);
+	        
+		waitAsync();
+		
+		assertNotNull(result);
+		assertEquals(AjaxStatus.FILE, status.getSource());
+		assertEquals(8, titles.size());
+		assertEquals("title 0", titles.get(0));
+		
+		AQUtility.debug(titles);
+	}
+	
 	public void testAjaxParseEncoding(){
 				
 		//String url = "http://www.kyotojp.com/limousine-big5.html";
@@ -1645,4 +1802,357 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
         
         
     }
+	
+	public void testDownloadStalePartial() throws IOException {
+		
+		File target = new File(AQUtility.getCacheDir(getActivity()), "resume.jpg");
+		target.delete();
+		
+		File partial = new File(target.getPath() + ".part");
+		AQUtility.write(partial, new byte[1000]);
+		AQUtility.write(new File(partial.getPath() + ".tag"), "\"stale\"".getBytes());
+		
+		//the server ignores the range of the stale validator and sends the full content
+		String url = serve(response(200, "ETag: \"fresh\"\r\n", new byte[2000])) + "/resume.jpg";
+		
+		AjaxCallback<File> cb = new AjaxCallback<File>();
+		cb.url(url).type(File.class).targetFile(target).resume(true);
+		
+		aq.sync(cb);
+		
+		File file = cb.getResult();
+		
+		assertNotNull(file);
+		assertEquals(200, cb.getStatus().getCode());
+		assertFalse(partial.exists());
+		assertEquals(2000, file.length());
+		
+		target.delete();
+		
+	}
+	
+	public void testCacheNonUtf8() throws IOException {
+		
+		String text = "\u3053\u3093\u306b\u3061\u306f";
+		byte[] body = text.getBytes("Shift_JIS");
+		
+		String url = serve(response(200, "Content-Type: text/html; charset=Shift_JIS\r\n", body)) + "/sjis.html";
+		
+		AjaxCallback<String> cb = new AjaxCallback<String>();
+		cb.url(url).type(String.class).fileCache(true).memCache(false);
+		
+		aq.sync(cb);
+		
+		assertEquals(text, cb.getResult());
+		assertEquals(AjaxStatus.NETWORK, cb.getStatus().getSource());
+		
+		//let the store executor write the corrected text
+		waitSec(2000);
+		
+		//the server is gone, the text must come back from the file cache as utf-8
+		cb = new AjaxCallback<String>();
+		cb.url(url).type(String.class).fileCache(true).memCache(false);
+		
+		aq.sync(cb);
+		
+		assertEquals(AjaxStatus.FILE, cb.getStatus().getSource());
+		assertEquals(text, cb.getResult());
+		
+	}
+	
+	public void testJSONSnapshotRoundTrip() throws JSONException{
+		
+		String text = "\u3053\u3093\u306b\u3061\u306f";
+		
+		JSONObject jo = new JSONObject();
+		jo.put("nested", new JSONObject().put("list", new JSONArray().put(1).put("two").put(new JSONObject().put("none", JSONObject.NULL))));
+		jo.put("null", JSONObject.NULL);
+		jo.put("int", 7);
+		jo.put("long", 12345678901234L);
+		jo.put("double", 3.0);
+		jo.put("bool", true);
+		jo.put("unicode", text);
+		
+		byte[] data = JSONSnapshot.encode(jo, 10, 20);
+		assertNotNull(data);
+		
+		JSONObject result = (JSONObject) JSONSnapshot.decode(data, 10, 20);
+		
+		JSONArray list = result.getJSONObject("nested").getJSONArray("list");
+		assertEquals(3, list.length());
+		assertEquals(1, list.getInt(0));
+		assertEquals("two", list.getString(1));
+		assertTrue(list.getJSONObject(2).isNull("none"));
+		
+		assertTrue(result.isNull("null"));
+		assertEquals(Integer.valueOf(7), result.get("int"));
+		
+		//a long stays a long and a whole double stays a double
+		assertEquals(Long.valueOf(12345678901234L), result.get("long"));
+		assertEquals(Double.valueOf(3.0), result.get("double"));
+		
+		assertEquals(Boolean.TRUE, result.get("bool"));
+		assertEquals(text, result.getString("unicode"));
+		
+		JSONArray ja = new JSONArray().put("a").put("a").put(JSONObject.NULL);
+		JSONArray ra = (JSONArray) JSONSnapshot.decode(JSONSnapshot.encode(ja, 1, 2), 1, 2);
+		
+		assertEquals(3, ra.length());
+		assertEquals("a", ra.getString(1));
+		assertTrue(ra.isNull(2));
+		
+	}
+	
+	public void testJSONSnapshotCorrupt() throws JSONException{
+		
+		JSONObject jo = new JSONObject().put("key", "value").put("list", new JSONArray().put(1).put(2));
+		
+		byte[] data = JSONSnapshot.encode(jo, 10, 20);
+		
+		//made from another version of the source file
+		assertNull(JSONSnapshot.decode(data, 11, 20));
+		assertNull(JSONSnapshot.decode(data, 10, 21));
+		
+		byte[] truncated = new byte[data.length - 3];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		assertNull(JSONSnapshot.decode(truncated, 10, 20));
+		
+		byte[] trailing = new byte[data.length + 1];
+		System.arraycopy(data, 0, trailing, 0, data.length);
+		assertNull(JSONSnapshot.decode(trailing, 10, 20));
+		
+		byte[] magic = data.clone();
+		magic[0] ^= 0xff;
+		assertNull(JSONSnapshot.decode(magic, 10, 20));
+		
+		assertNull(JSONSnapshot.decode(new byte[0], 10, 20));
+		
+	}
+	
+	private JSONObject snapshotFetch(String url){
+		
+		AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+		cb.url(url).type(JSONObject.class).fileCache(true).memCache(false);
+		
+		aq.sync(cb);
+		
+		assertEquals(AjaxStatus.FILE, cb.getStatus().getSource());
+		
+		return cb.getResult();
+	}
+	
+	public void testJSONSnapshotFallback() throws JSONException{
+		
+		//nothing listens, every result comes from the file cache
+		String url = "http://127.0.0.1:1/snapshot.json";
+		
+		File cached = AQUtility.getCacheFile(AQUtility.getCacheDir(getActivity()), url);
+		File snap = new File(cached.getPath() + ".snap");
+		
+		snap.delete();
+		AQUtility.write(cached, "{\"v\":1}".getBytes());
+		
+		AjaxCallback.setJSONSnapshot(true);
+		
+		try{
+			
+			//parsed from the text, the snapshot is written after
+			assertEquals(1, snapshotFetch(url).getInt("v"));
+			waitSec(500);
+			assertTrue(snap.exists());
+			
+			assertEquals(1, snapshotFetch(url).getInt("v"));
+			
+			//a corrupted snapshot falls back to the text
+			AQUtility.write(snap, new byte[]{1, 2, 3});
+			assertEquals(1, snapshotFetch(url).getInt("v"));
+			waitSec(500);
+			
+			//a snapshot of the replaced file is stale
+			AQUtility.write(cached, "{\"v\":22}".getBytes());
+			assertEquals(22, snapshotFetch(url).getInt("v"));
+			
+		}finally{
+			AjaxCallback.setJSONSnapshot(false);
+			waitSec(500);
+			cached.delete();
+			snap.delete();
+		}
+		
+	}
+	
+	private AjaxCallback<String> retryFetch(String url, int max, long delay, int retryOn){
+		
+		AjaxCallback<String> cb = new AjaxCallback<String>();
+		cb.url(url).type(String.class).retry(max, delay, retryOn);
+		
+		aq.sync(cb);
+		
+		return cb;
+	}
+	
+	private long requestGap(int index){
+		return requestTimes.get(index) - requestTimes.get(index - 1);
+	}
+	
+	public void testRetryBackoff() throws IOException{
+		
+		byte[] error = response(500, "", new byte[0]);
+		String url = serve(error, error, response(200, "", "ok".getBytes())) + "/retry";
+		
+		AjaxCallback<String> cb = retryFetch(url, 2, 400, AQuery.RETRY_ALL);
+		
+		assertEquals("ok", cb.getResult());
+		assertEquals(3, requests.size());
+		
+		//at least half of the base delay, doubled for the second retry
+		assertTrue(requestGap(1) >= 200);
+		assertTrue(requestGap(2) >= 400);
+		
+	}
+	
+	public void testRetryOnFilter() throws IOException{
+		
+		String url = serve(response(500, "", new byte[0]), response(200, "", "ok".getBytes())) + "/retry";
+		
+		//server errors are not retried when only network errors are
+		AjaxCallback<String> cb = retryFetch(url, 2, 100, AQuery.RETRY_NETWORK);
+		
+		assertNull(cb.getResult());
+		assertEquals(500, cb.getStatus().getCode());
+		assertEquals(1, requests.size());
+		
+	}
+	
+	public void testRetryAgain() throws IOException{
+		
+		byte[] error = response(500, "", new byte[0]);
+		String url = serve(error, error, error, error) + "/retry";
+		
+		AjaxCallback<String> cb = new AjaxCallback<String>();
+		cb.url(url).type(String.class).retry(1, 100);
+		
+		aq.sync(cb);
+		assertEquals(2, requests.size());
+		
+		//started again, the callback gets its retries back
+		aq.sync(cb);
+		assertEquals(500, cb.getStatus().getCode());
+		assertEquals(4, requests.size());
+		
+	}
+	
+	public void testRetryAfterSeconds() throws IOException{
+		
+		String url = serve(response(429, "Retry-After: 2\r\n", new byte[0]), response(200, "", "ok".getBytes())) + "/retry";
+		
+		//the header wins over the tiny base delay
+		AjaxCallback<String> cb = retryFetch(url, 1, 10, AQuery.RETRY_THROTTLED);
+		
+		assertEquals("ok", cb.getResult());
+		assertTrue(requestGap(1) >= 1900);
+		
+	}
+	
+	public void testRetryAfterDate() throws IOException{
+		
+		long now = System.currentTimeMillis();
+		String headers = "Date: " + DateUtils.formatDate(new Date(now)) + "\r\nRetry-After: " + DateUtils.formatDate(new Date(now + 2000)) + "\r\n";
+		
+		String url = serve(response(503, headers, new byte[0]), response(200, "", "ok".getBytes())) + "/retry";
+		
+		AjaxCallback<String> cb = retryFetch(url, 1, 10, AQuery.RETRY_SERVER);
+		
+		assertEquals("ok", cb.getResult());
+		assertTrue(requestGap(1) >= 1900);
+		
+	}
+	
+	//pages are delivered on the writing thread, the second page aborts if asked
+	private JSONArrayStream arrayStream(final List<JSONArray> pages, final boolean abortAfterFirst, String json, int pageSize) throws IOException{
+		
+		AjaxCallback<JSONArray> cb = new AjaxCallback<JSONArray>(){
+			
+			@Override
+			public void page(String url, JSONArray items, AjaxStatus status){
+				pages.add(items);
+				if(abortAfterFirst) abort();
+			}
+		};
+		
+		cb.uiCallback(false);
+		
+		JSONArrayStream stream = new JSONArrayStream(cb, null, "UTF-8", pageSize);
+		AQUtility.copy(new ByteArrayInputStream(json.getBytes("UTF-8")), stream);
+		
+		return stream;
+	}
+	
+	public void testArrayStreamPages() throws Exception{
+		
+		List<JSONArray> pages = new ArrayList<JSONArray>();
+		JSONArrayStream stream = arrayStream(pages, false, " [1, 2, 3, 4] ", 2);
+		
+		assertEquals(2, pages.size());
+		assertEquals(1, pages.get(0).getInt(0));
+		assertEquals(2, pages.get(0).getInt(1));
+		assertEquals(4, pages.get(1).getInt(1));
+		
+		assertEquals(4, stream.getResult().length());
+		
+	}
+	
+	public void testArrayStreamPartialPage() throws Exception{
+		
+		List<JSONArray> pages = new ArrayList<JSONArray>();
+		
+		//separators inside nested values and strings are not element boundaries
+		JSONArrayStream stream = arrayStream(pages, false, "[{\"a\":[1,2]}, \"x,]\\\"\", 3]", 2);
+		
+		assertEquals(2, pages.size());
+		assertEquals(2, pages.get(0).length());
+		assertEquals(2, pages.get(0).getJSONObject(0).getJSONArray("a").length());
+		assertEquals("x,]\"", pages.get(0).getString(1));
+		
+		//the last page holds the rest
+		assertEquals(1, pages.get(1).length());
+		assertEquals(3, pages.get(1).getInt(0));
+		
+		assertEquals(3, stream.getResult().length());
+		
+	}
+	
+	public void testArrayStreamMalformed() throws Exception{
+		
+		List<JSONArray> pages = new ArrayList<JSONArray>();
+		JSONArrayStream stream = arrayStream(pages, false, "[1, {bad}, 3]", 1);
+		
+		//pages before the broken element are delivered, nothing after it
+		assertEquals(1, pages.size());
+		assertNull(stream.getResult());
+		
+		pages.clear();
+		stream = arrayStream(pages, false, "{\"a\":1}", 1);
+		
+		//not an array, left to the regular transform
+		assertEquals(0, pages.size());
+		assertNull(stream.getResult());
+		
+	}
+	
+	public void testArrayStreamCancel() throws Exception{
+		
+		List<JSONArray> pages = new ArrayList<JSONArray>();
+		
+		try{
+			arrayStream(pages, true, "[1, 2, 3, 4]", 1);
+			fail("not aborted");
+		}catch(IOException e){
+			//aborted between pages
+		}
+		
+		assertEquals(1, pages.size());
+		
+	}
+	
 }
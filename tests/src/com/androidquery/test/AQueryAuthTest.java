@@ -17,7 +17,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.androidquery.AQuery;
+import com.androidquery.auth.AccountHandle;
 import com.androidquery.auth.BasicHandle;
+import com.androidquery.callback.AbstractAjaxCallback;
 import com.androidquery.callback.AjaxCallback;
 import com.androidquery.callback.AjaxStatus;
 import com.androidquery.util.AQUtility;
@@ -143,4 +145,80 @@ public class AQueryAuthTest extends AbstractTest<AQueryTestActivity> {
 	}
 	
 
+	//an authenticated handle that scopes the cache url to an account
+	private static class AccountCacheHandle extends AccountHandle{
+		
+		private String account;
+		
+		public AccountCacheHandle(String account){
+			this.account = account;
+		}
+		
+		@Override
+		public boolean authenticated(){
+			return true;
+		}
+		
+		@Override
+		protected void auth(){
+		}
+		
+		@Override
+		public boolean expired(AbstractAjaxCallback<?, ?> cb, AjaxStatus status){
+			return false;
+		}
+		
+		@Override
+		public boolean reauth(AbstractAjaxCallback<?, ?> cb){
+			return false;
+		}
+		
+		@Override
+		public String getCacheUrl(String url){
+			return url + "#" + account;
+		}
+	}
+	
+	private AjaxCallback<String> fetch(String url, AccountHandle handle){
+		
+		AjaxCallback<String> cb = new AjaxCallback<String>();
+		cb.url(url).type(String.class).memCache(true).auth(handle);
+		
+		aq.sync(cb);
+		
+		return cb;
+	}
+	
+	public void testMemCacheAccount() throws IOException{
+		
+		String url = serve(response(200, "", "a".getBytes()), response(200, "", "b".getBytes())) + "/account";
+		
+		AjaxCallback<String> cb = fetch(url, new AccountCacheHandle("a"));
+		assertEquals("a", cb.getResult());
+		
+		//another account does not see the cached result
+		cb = fetch(url, new AccountCacheHandle("b"));
+		assertEquals("b", cb.getResult());
+		assertEquals(AjaxStatus.NETWORK, cb.getStatus().getSource());
+		
+		cb = fetch(url, new AccountCacheHandle("a"));
+		assertEquals("a", cb.getResult());
+		assertEquals(AjaxStatus.MEMORY, cb.getStatus().getSource());
+		
+	}
+	
+	public void testMemCacheUnscopedHandle() throws IOException{
+		
+		String url = serve(response(200, "", "first".getBytes()), response(200, "", "second".getBytes())) + "/basic";
+		
+		//the cache url of a basic handle is the same for every user, results are not memcached
+		AjaxCallback<String> cb = fetch(url, new BasicHandle("user1", "1234"));
+		assertEquals("first", cb.getResult());
+		
+		cb = fetch(url, new BasicHandle("user2", "1234"));
+		assertEquals("second", cb.getResult());
+		assertEquals(AjaxStatus.NETWORK, cb.getStatus().getSource());
+		
+	}
+	
 }
@@ -483,4 +483,71 @@ public class AQueryImageTest extends AbstractTest<AQueryTestActivity> {
 		
     }	
 	
+	public void testImageConfigNotShared() {
+		
+		clearCache();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				BitmapAjaxCallback cb = new BitmapAjaxCallback();
+				cb.url(LAND_URL).targetWidth(200).config(Bitmap.Config.RGB_565);
+				aq.id(R.id.image).image(cb);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		assertLoaded(aq.getImageView(), true);
+		
+		//the RGB_565 bitmap is not served to a request of the default config
+		assertNull(BitmapAjaxCallback.getMemoryCached(LAND_URL, 200));
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				aq.id(R.id.image).image(LAND_URL, true, true, 200, 0);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		Bitmap bm = BitmapAjaxCallback.getMemoryCached(LAND_URL, 200);
+		assertNotNull(bm);
+		assertEquals(Bitmap.Config.ARGB_8888, bm.getConfig());
+		
+    }
+	
+	public void testImageAfterRecycleAbort() {
+		
+		clearCache();
+		
+		final ImageView recycled = new ImageView(getActivity());
+		final ImageView other = new ImageView(getActivity());
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				AQuery aq = new AQuery(getActivity());
+				
+				//the view is reused for another image before the first one arrives, its request is aborted
+				aq.id(recycled).image(LAND_URL, false, false);
+				aq.id(recycled).image(ICON_URL, false, false);
+				
+				//a new request of the aborted url fetches it again instead of waiting on the aborted request
+				aq.id(other).image(LAND_URL, false, false);
+			}
+		});
+		
+		waitAsync(5000);
+		
+		assertLoaded(recycled, true);
+		assertLoaded(other, true);
+		
+    }
+	
 }
@@ -1,8 +1,13 @@
 package com.androidquery.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.zip.CRC32;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,6 +18,8 @@ import com.androidquery.AQuery;
 import com.androidquery.callback.AjaxCallback;
 import com.androidquery.callback.AjaxStatus;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.PackStore;
+import com.androidquery.util.WriteBuffer;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -78,4 +85,246 @@ public class AQueryMiscTest extends AbstractTest<AQueryTestActivity> {
 		AQUtility.debug(Arrays.asList(splits));
 		
 	}
+	
+	private static int packs;
+	
+	//a new directory each time, the store of a directory is kept open
+	private File packDir(){
+		File dir = new File(AQUtility.getCacheDir(getActivity()), "packtest" + System.currentTimeMillis() + "_" + packs++);
+		dir.mkdirs();
+		return dir;
+	}
+	
+	private File packFile(File dir){
+		return new File(dir, "aquery.pack");
+	}
+	
+	private byte[] read(File file) throws IOException{
+		return AQUtility.toBytes(new FileInputStream(file));
+	}
+	
+	public void testPackRecord() throws IOException{
+		
+		File dir = packDir();
+		PackStore store = PackStore.get(dir);
+		
+		byte[] data = new byte[]{1, 2, 3};
+		store.put("k", data);
+		
+		assertTrue(Arrays.equals(data, store.get("k", 0)));
+		
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(read(packFile(dir))));
+		
+		assertEquals(1, dis.readUnsignedShort());
+		assertEquals('k', dis.readByte());
+		assertTrue(dis.readLong() > 0);
+		assertEquals(3, dis.readInt());
+		
+		byte[] stored = new byte[3];
+		dis.readFully(stored);
+		assertTrue(Arrays.equals(data, stored));
+		
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		assertEquals((int) crc.getValue(), dis.readInt());
+		
+		assertEquals(-1, dis.read());
+		
+		assertTrue(store.delete("k"));
+		assertNull(store.get("k", 0));
+		
+	}
+	
+	public void testPackCrcMismatch() throws IOException{
+		
+		File dir = packDir();
+		PackStore store = PackStore.get(dir);
+		
+		store.put("k", new byte[]{1, 2, 3});
+		
+		//flip the last data byte in place, behind the store
+		RandomAccessFile raf = new RandomAccessFile(packFile(dir), "rw");
+		raf.seek(raf.length() - 5);
+		raf.write(3 ^ 0xff);
+		raf.close();
+		
+		byte[] raw = read(packFile(dir));
+		
+		assertNull(store.get("k", 0));
+		assertFalse(store.contains("k"));
+		
+		//a fresh scan stops at the corrupted record
+		File copy = packDir();
+		AQUtility.write(packFile(copy), raw);
+		
+		assertFalse(PackStore.get(copy).contains("k"));
+		assertEquals(0, packFile(copy).length());
+		
+	}
+	
+	public void testPackTornTail() throws IOException{
+		
+		File dir = packDir();
+		PackStore store = PackStore.get(dir);
+		
+		store.put("a", new byte[100]);
+		
+		long good = packFile(dir).length();
+		
+		store.put("b", new byte[100]);
+		
+		//a crash in the middle of the second record
+		byte[] raw = read(packFile(dir));
+		byte[] torn = new byte[(int) good + 50];
+		System.arraycopy(raw, 0, torn, 0, torn.length);
+		
+		File copy = packDir();
+		AQUtility.write(packFile(copy), torn);
+		
+		PackStore reopened = PackStore.get(copy);
+		
+		assertNotNull(reopened.get("a", 0));
+		assertNull(reopened.get("b", 0));
+		assertEquals(good, packFile(copy).length());
+		
+		//appends go after the good records
+		reopened.put("b", new byte[]{7});
+		assertEquals(7, reopened.get("b", 0)[0]);
+		assertNotNull(reopened.get("a", 0));
+		
+	}
+	
+	public void testPackCompact() throws IOException{
+		
+		File dir = packDir();
+		PackStore store = PackStore.get(dir);
+		
+		byte[] data = new byte[8192];
+		
+		for(int i = 0; i < 20; i++){
+			data[0] = (byte) i;
+			store.put("k", data);
+		}
+		
+		//replaced records are dropped once they take more than half of the file
+		assertTrue(packFile(dir).length() < 10 * data.length);
+		assertEquals(19, store.get("k", 0)[0]);
+		assertEquals(data.length, store.getSize());
+		
+	}
+	
+	public void testPackTrim() throws IOException{
+		
+		File dir = packDir();
+		PackStore store = PackStore.get(dir);
+		
+		for(int i = 0; i < 10; i++){
+			store.put("k" + i, new byte[1000]);
+		}
+		
+		assertEquals(10000, store.getSize());
+		
+		long left = store.trim(5000);
+		
+		assertEquals(5000, left);
+		assertEquals(5000, store.getSize());
+		
+		//the oldest entries go first
+		assertNull(store.get("k0", 0));
+		assertNull(store.get("k4", 0));
+		assertNotNull(store.get("k5", 0));
+		assertNotNull(store.get("k9", 0));
+		
+		assertTrue(packFile(dir).length() < 6000);
+		
+	}
+	
+	public void testStoreQueueFull(){
+		
+		File file = new File(packDir(), "full");
+		
+		AQUtility.setMaxPendingBytes(1);
+		
+		try{
+			//over the limit, the calling thread waits for its write on the store lane
+			AQUtility.storeAsync(file, new byte[100], 0);
+			assertEquals(100, file.length());
+		}finally{
+			AQUtility.setMaxPendingBytes(1024 * 1024 * 4);
+		}
+		
+	}
+	
+	@UiThreadTest
+	public void testStoreQueueFullUiThread(){
+		
+		File file = new File(packDir(), "full");
+		
+		AQUtility.setMaxPendingBytes(1);
+		
+		try{
+			//the ui thread never waits, the write is dropped
+			AQUtility.storeAsync(file, new byte[100], 0);
+		}finally{
+			AQUtility.setMaxPendingBytes(1024 * 1024 * 4);
+		}
+		
+		waitSec(500);
+		
+		assertFalse(file.exists());
+		
+	}
+	
+	public void testWriteBufferCoalesce() throws IOException{
+		
+		File file = new File(packDir(), "buffered");
+		WriteBuffer buffer = new WriteBuffer(300, 1024 * 1024);
+		
+		buffer.put("url", file, new byte[]{1});
+		buffer.put("url", file, new byte[]{2, 2});
+		
+		//held until the delay passes
+		assertFalse(file.exists());
+		
+		waitSec(1000);
+		
+		//only the newer write of the file is flushed
+		assertTrue(Arrays.equals(new byte[]{2, 2}, read(file)));
+		
+	}
+	
+	public void testWriteBufferDrop(){
+		
+		File file = new File(packDir(), "buffered");
+		WriteBuffer buffer = new WriteBuffer(300, 1024 * 1024);
+		
+		buffer.put("url", file, new byte[]{1});
+		
+		//as done when the image is evicted from the memcache before the flush
+		assertTrue(buffer.drop("url"));
+		assertFalse(buffer.drop("url"));
+		
+		waitSec(1000);
+		
+		assertFalse(file.exists());
+		
+	}
+	
+	public void testWriteBufferOrder() throws IOException{
+		
+		File file = new File(packDir(), "buffered");
+		WriteBuffer buffer = new WriteBuffer(60000, 1024 * 1024);
+		
+		buffer.put("url", file, new byte[]{1});
+		buffer.flushAsync();
+		
+		//queued after the buffered write on the lane of the file
+		AQUtility.storeAsync(file, new byte[]{2}, 0);
+		
+		waitSec(1000);
+		
+		assertTrue(Arrays.equals(new byte[]{2}, read(file)));
+		
+	}
+	
 }
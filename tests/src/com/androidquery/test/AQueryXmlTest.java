@@ -170,4 +170,51 @@ public class AQueryXmlTest extends AbstractTest<AQueryTestActivity> {
 		
 	}
 	
+	public void testSelect(){
+		
+		assertEquals(8, xml.select("feed > entry").size());
+		assertEquals(8, xml.select("entry > link[rel=self]").size());
+		assertEquals(0, xml.select("feed > link[rel=what]").size());
+		assertEquals(3, xml.select("feed > link[type]").size());
+	}
+	
+	public void testPullParser() throws SAXException{
+		
+		XmlDom.setPullParser(true);
+		
+		try{
+		
+			InputStream is = this.getActivity().getResources().openRawResource(R.raw.xml_test);
+			XmlDom pull = new XmlDom(is);
+			
+			assertNull(pull.getElement());
+			assertEquals(xml.tags("entry").size(), pull.tags("entry").size());
+			assertEquals(xml.children("link").size(), pull.children("link").size());
+			assertEquals(xml.text("id"), pull.text("id"));
+			assertEquals(xml.child("entry").text("title"), pull.child("entry").text("title"));
+			assertEquals("application/atom+xml", pull.child("link", "rel", "self").attr("type"));
+			assertEquals(8, pull.select("feed > entry").size());
+			assertTrue(pull.toString().length() > 300);
+		
+		}finally{
+			XmlDom.setPullParser(false);
+		}
+	}
+	
+	private int streamed;
+	
+	public void testStream() throws SAXException{
+		
+		InputStream is = this.getActivity().getResources().openRawResource(R.raw.xml_test);
+		XmlDom.stream(is, "feed > entry", this, "streamCb");
+		
+		assertEquals(8, streamed);
+	}
+	
+	public void streamCb(XmlDom entry){
+		
+		assertNotNull(entry.text("title"));
+		streamed++;
+	}
+	
 }
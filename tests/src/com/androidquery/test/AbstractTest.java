@@ -1,6 +1,16 @@
 package com.androidquery.test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import com.androidquery.AQuery;
 import com.androidquery.callback.BitmapAjaxCallback;
@@ -79,4 +89,72 @@ public abstract class AbstractTest<T extends Activity> extends ActivityInstrumen
 		
 	}
 	
+	//the first line and the time of each request received by the local server
+	protected List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+	protected List<Long> requestTimes = Collections.synchronizedList(new ArrayList<Long>());
+	
+	//a local server that answers each request with the next response, then closes
+	protected String serve(final byte[]... responses) throws IOException {
+		
+		final ServerSocket server = new ServerSocket(0);
+		
+		//gives up on requests that never come
+		server.setSoTimeout(30000);
+		
+		new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				try{
+					
+					for(byte[] response: responses){
+						
+						Socket socket = server.accept();
+						
+						try{
+							BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+							String line = reader.readLine();
+							
+							requests.add(line);
+							requestTimes.add(System.currentTimeMillis());
+							
+							while(line != null && line.length() > 0){
+								AQUtility.debug("request", line);
+								line = reader.readLine();
+							}
+							
+							OutputStream os = socket.getOutputStream();
+							os.write(response);
+							os.flush();
+						}finally{
+							socket.close();
+						}
+					}
+					
+				}catch(IOException e){
+					AQUtility.debug(e);
+				}finally{
+					try{
+						server.close();
+					}catch(IOException e){
+					}
+				}
+			}
+		}).start();
+		
+		return "http://127.0.0.1:" + server.getLocalPort();
+	}
+	
+	protected static byte[] response(int code, String headers, byte[] body) throws IOException {
+		
+		String head = "HTTP/1.1 " + code + " Status\r\nContent-Length: " + body.length + "\r\n" + headers + "Connection: close\r\n\r\n";
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(head.getBytes("US-ASCII"));
+		baos.write(body);
+		
+		return baos.toByteArray();
+	}
+	
 }